@@ -42,6 +42,10 @@ dependencies {
     compileOnly("org.projectlombok:lombok:1.18.30")
     implementation("com.j256.ormlite:ormlite-jdbc:6.1")
     implementation("org.xerial:sqlite-jdbc:3.45.0.0")
+    testImplementation("io.papermc.paper:paper-api:$paperVersion")
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 tasks {
@@ -54,6 +58,34 @@ tasks {
 
     compileJava {
         options.encoding = "UTF-8"
+        options.compilerArgs.addAll(listOf("--add-modules", "jdk.incubator.vector"))
+    }
+
+    compileTestJava {
+        options.encoding = "UTF-8"
+        options.compilerArgs.addAll(listOf("--add-modules", "jdk.incubator.vector"))
+    }
+
+    test {
+        useJUnitPlatform {
+            excludeTags("benchmark")
+        }
+        jvmArgs("--add-modules=jdk.incubator.vector")
+    }
+
+    register<Test>("benchmark") {
+        group = "verification"
+        testClassesDirs = sourceSets.test.get().output.classesDirs
+        classpath = sourceSets.test.get().runtimeClasspath
+        useJUnitPlatform {
+            includeTags("benchmark")
+        }
+        jvmArgs("--add-modules=jdk.incubator.vector")
+        testLogging.showStandardStreams = true
+    }
+
+    runServer {
+        jvmArgs("--add-modules=jdk.incubator.vector")
     }
 
     processResources {
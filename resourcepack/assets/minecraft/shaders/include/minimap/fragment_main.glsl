@@ -1,7 +1,7 @@
 #define BORDER_COLOR1 vec4(vec3(40. / 255.), 1.)
 #define BORDER_COLOR2 vec4(vec3(70. / 255.), 1.)
 
-if (minimap == 1.0 || minimap == 2.0) {
+if (minimap == 1.0 || minimap == 2.0 || minimap == 3.0) {
     vec2 uvn11 = texCoord2 * 2.0 - 1.0;
     float dist = squareMinimap > 0.5
         ? max(abs(uvn11.x), abs(uvn11.y))
@@ -13,8 +13,12 @@ if (minimap == 1.0 || minimap == 2.0) {
     float ring1Start = inner + ringWidth * 0.3333333;
     float ring1End = inner + ringWidth * 0.8333333;
     float ring2Start = inner + ringWidth * 0.5;
-    if (dist < inner || keepEdges == 1.0) {
-        vec4 color = texture(Sampler0, texCoord1);
+    if (minimap == 3.0) {
+        vec4 color = sampleMarkerTable(texCoord1, dist < inner);
+        remapColor(color);
+        fragColor = color * vertexColor * ColorModulator;
+    } else if (dist < inner || keepEdges == 1.0) {
+        vec4 color = texture(Sampler0, toroidal > 0.5 ? wrapMinimapUv(texCoord1) : texCoord1);
         remapColor(color);
         fragColor = color * vertexColor * ColorModulator;
     } else if (dist < outer && minimap == 1.0) {
@@ -31,9 +35,10 @@ if (minimap == 1.0 || minimap == 2.0) {
     }
     if (minimap == 1.0) {
         fragColor.a = 1.0;
-    } else {
-        if (fract(texCoord1.x) < 17. / 128. && fract(texCoord1.y) < 3. / 128. ||
-            fract(texCoord1.x) >= 127. / 128. || fract(texCoord1.y) >= 127. / 128.) {
+    } else if (minimap == 2.0) {
+        if (fract(texCoord1.x) < 27. / 128. && fract(texCoord1.y) < 3. / 128. ||
+            fract(texCoord1.x) >= 127. / 128. || fract(texCoord1.y) >= 127. / 128. ||
+            any(lessThan(texCoord1, vec2(0.0))) || any(greaterThanEqual(texCoord1, vec2(1.0)))) {
             discard;
         }
     }
@@ -3,6 +3,50 @@ case ((int(v.r*220./255.)<<16) + (int(v.g*220./255.)<<8) + int(v.b*220./255.)):
 case ((int(v.r*180./255.)<<16) + (int(v.g*180./255.)<<8) + int(v.b*180./255.)): color.rgb = t/255.*180./255.; break;\
 case ((int(v.r*135./255.)<<16) + (int(v.g*135./255.)<<8) + int(v.b*135./255.)): color.rgb = t/255.*135./255.; break;
 
+// World-aligned minimaps wrap around. Texels that hold the header show the row next to them instead.
+vec2 wrapMinimapUv(vec2 uv) {
+    ivec2 texel = ivec2(fract(uv) * 128.);
+    if (texel.y <= 1 && (texel.x < 36 || texel.x == 127)) {
+        texel.y = 2;
+    } else if (texel.y == 127 && (texel.x == 0 || texel.x == 127)) {
+        texel.y = 126;
+    }
+    return (vec2(texel) + 0.5) / 128.;
+}
+
+bool isMarkerTableBitSet(int x, int y) {
+    return length(texelFetch(Sampler0, ivec2(x, y), 0).rgb) > 0.0;
+}
+
+int decodeMarkerTableUnsigned(int offsetX, int offsetY) {
+    int value = 0;
+    for (int i = 0; i < 8; i++) {
+        if (isMarkerTableBitSet(offsetX + i, offsetY)) value |= 1 << i;
+    }
+    return value;
+}
+
+// Marker table entries start at row 2, four per row, 32 texels each: map x, map z and atlas slot as unsigned bytes,
+// then the keep-on-edge flag. The atlas holds 16x16 slots from row 16, icons are centered in them.
+// Later entries are drawn on top.
+vec4 sampleMarkerTable(vec2 uv, bool inside) {
+    mat2 rotation = mat2(cos(markerYaw), -sin(markerYaw), sin(markerYaw), cos(markerYaw));
+    for (int i = int(markerCount + 0.5) - 1; i >= 0; i--) {
+        int x = (i % 4) * 32;
+        int y = 2 + i / 4;
+        if (!inside && !isMarkerTableBitSet(x + 24, y)) continue;
+
+        vec2 position = vec2(decodeMarkerTableUnsigned(x + 8, y), decodeMarkerTableUnsigned(x, y));
+        vec2 local = floor((uv * 128. - position) * rotation + 8.);
+        if (any(lessThan(local, vec2(0.))) || any(greaterThanEqual(local, vec2(16.)))) continue;
+
+        int slot = decodeMarkerTableUnsigned(x + 16, y);
+        vec4 color = texelFetch(Sampler0, ivec2((slot % 8) * 16, 16 + (slot / 8) * 16) + ivec2(local), 0);
+        if (color.a > 0.1) return color;
+    }
+    return vec4(0.0);
+}
+
 void remapColor(inout vec4 color) {
     // Godlander's map colors
     // https://github.com/Godlander/vpp/blob/main/assets/minecraft/shaders/core/render/text.fsh
@@ -19,6 +19,7 @@ package com.jnngl.vanillaminimaps;
 
 import com.jnngl.vanillaminimaps.clientside.ClientsideMinimapFactory;
 import com.jnngl.vanillaminimaps.clientside.MinimapPacketSender;
+import com.jnngl.vanillaminimaps.clientside.ScheduledMinimapPacketSender;
 import com.jnngl.vanillaminimaps.clientside.SteerableViewFactory;
 import com.jnngl.vanillaminimaps.clientside.impl.NMSClientsideMinimapFactory;
 import com.jnngl.vanillaminimaps.clientside.impl.NMSMinimapPacketSender;
@@ -28,20 +29,25 @@ import com.jnngl.vanillaminimaps.command.MinimapCommand;
 import com.jnngl.vanillaminimaps.command.NMSCommandDispatcherAccessor;
 import com.jnngl.vanillaminimaps.config.BlockConfig;
 import com.jnngl.vanillaminimaps.config.Config;
+import com.jnngl.vanillaminimaps.injection.EncodedPacketInjector;
 import com.jnngl.vanillaminimaps.injection.PassengerRewriter;
 import com.jnngl.vanillaminimaps.listener.MinimapBlockListener;
 import com.jnngl.vanillaminimaps.listener.MinimapListener;
 import com.jnngl.vanillaminimaps.map.Minimap;
 import com.jnngl.vanillaminimaps.map.MinimapProvider;
+import com.jnngl.vanillaminimaps.map.MinimapScale;
 import com.jnngl.vanillaminimaps.map.fullscreen.FullscreenMinimap;
 import com.jnngl.vanillaminimaps.map.icon.PlayerHeadIconCache;
 import com.jnngl.vanillaminimaps.map.icon.provider.BuiltinMinimapIconProvider;
 import com.jnngl.vanillaminimaps.map.icon.provider.MinimapIconProvider;
 import com.jnngl.vanillaminimaps.map.renderer.world.WorldMinimapRenderer;
 import com.jnngl.vanillaminimaps.map.renderer.world.cache.CacheableWorldMinimapRenderer;
+import com.jnngl.vanillaminimaps.map.renderer.world.cache.TileRenderExecutor;
+import com.jnngl.vanillaminimaps.map.renderer.world.cache.TileStore;
 import com.jnngl.vanillaminimaps.map.renderer.world.provider.BuiltinMinimapWorldRendererProvider;
 import com.jnngl.vanillaminimaps.map.renderer.world.provider.MinimapWorldRendererProvider;
 import com.jnngl.vanillaminimaps.storage.MinimapPlayerDatabase;
+import io.netty.channel.ChannelPipeline;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import org.bukkit.Bukkit;
@@ -55,6 +61,7 @@ import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.command.PluginCommand;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -77,7 +84,7 @@ public final class VanillaMinimaps extends JavaPlugin implements MinimapProvider
   private ClientsideMinimapFactory defaultClientsideMinimapFactory;
 
   @MonotonicNonNull
-  private MinimapPacketSender defaultMinimapPacketSender;
+  private ScheduledMinimapPacketSender defaultMinimapPacketSender;
 
   @MonotonicNonNull
   private WorldMinimapRenderer defaultWorldRenderer;
@@ -103,6 +110,12 @@ public final class VanillaMinimaps extends JavaPlugin implements MinimapProvider
   @MonotonicNonNull
   private MinimapPlayerDatabase playerDataStorage;
 
+  @Nullable
+  private TileRenderExecutor tileRenderExecutor;
+
+  @Nullable
+  private TileStore tileStore;
+
   @Override
   @SneakyThrows
   public void onEnable() {
@@ -119,7 +132,7 @@ public final class VanillaMinimaps extends JavaPlugin implements MinimapProvider
     playerDataStorage = new MinimapPlayerDatabase(dataPath.resolve("players.db"));
 
     defaultClientsideMinimapFactory = new NMSClientsideMinimapFactory();
-    defaultMinimapPacketSender = new NMSMinimapPacketSender(this);
+    defaultMinimapPacketSender = new ScheduledMinimapPacketSender(this, new NMSMinimapPacketSender(this));
     minimapIconProvider = new BuiltinMinimapIconProvider(iconsPath);
     playerHeadIconCache = new PlayerHeadIconCache(this);
     worldRendererProvider = new BuiltinMinimapWorldRendererProvider();
@@ -127,6 +140,10 @@ public final class VanillaMinimaps extends JavaPlugin implements MinimapProvider
     minimapListener = new MinimapListener(this);
     steerableViewFactory = new NMSSteerableViewFactory();
 
+    if (Config.instance().rendering.asyncTiles) {
+      tileRenderExecutor = new TileRenderExecutor(this, Config.instance().rendering.workerThreads);
+    }
+
     defaultWorldRenderer = worldRendererProvider.create(Config.instance().defaultMinimapRenderer);
     if (defaultWorldRenderer == null) {
       throw new IllegalArgumentException("default-world-renderer");
@@ -134,6 +151,11 @@ public final class VanillaMinimaps extends JavaPlugin implements MinimapProvider
 
     if (defaultWorldRenderer instanceof CacheableWorldMinimapRenderer cacheable) {
       minimapBlockListener.registerCache(cacheable.getWorldMapCache());
+      if (Config.instance().tileCache.persistent) {
+        tileStore = new TileStore(dataPath.resolve("tiles").resolve(Config.instance().defaultMinimapRenderer),
+            MinimapScale.get(), getLogger());
+        cacheable.getWorldMapCache().setTileStore(tileStore);
+      }
     }
 
     Bukkit.getPluginManager().registerEvents(this, this);
@@ -152,12 +174,23 @@ public final class VanillaMinimaps extends JavaPlugin implements MinimapProvider
     new MinimapCommand(this).register(NMSCommandDispatcherAccessor.vanillaDispatcher());
 
     minimapListener.startOtherPlayerUpdates();
+    defaultMinimapPacketSender.start();
   }
 
   @Override
   @SneakyThrows
   public void onDisable() {
     minimapListener.stopOtherPlayerUpdates();
+    defaultMinimapPacketSender.stop();
+    if (tileRenderExecutor != null) {
+      tileRenderExecutor.shutdown();
+    }
+    if (tileStore != null) {
+      if (defaultWorldRenderer instanceof CacheableWorldMinimapRenderer cacheable) {
+        cacheable.getWorldMapCache().flush();
+      }
+      tileStore.close();
+    }
     playerDataStorage.close();
   }
 
@@ -185,6 +218,11 @@ public final class VanillaMinimaps extends JavaPlugin implements MinimapProvider
     return playerHeadIconCache;
   }
 
+  @Nullable
+  public TileRenderExecutor tileRenderExecutor() {
+    return tileRenderExecutor;
+  }
+
   @Override
   public MinimapWorldRendererProvider worldRendererProvider() {
     return worldRendererProvider;
@@ -227,12 +265,15 @@ public final class VanillaMinimaps extends JavaPlugin implements MinimapProvider
   @EventHandler(priority = EventPriority.HIGH)
   public void onPlayerJoin(PlayerJoinEvent event) {
     PassengerRewriter rewriter = new PassengerRewriter();
-    ((CraftPlayer) event.getPlayer()).getHandle().connection.connection.channel.pipeline().addBefore("packet_handler", "passenger_rewriter", rewriter);
+    ChannelPipeline pipeline = ((CraftPlayer) event.getPlayer()).getHandle().connection.connection.channel.pipeline();
+    pipeline.addBefore("packet_handler", "passenger_rewriter", rewriter);
+    pipeline.addBefore("packet_handler", "encoded_packet_injector", new EncodedPacketInjector());
     passengerRewriters.put(event.getPlayer(), rewriter);
   }
 
   @EventHandler(priority = EventPriority.LOW)
   public void onPlayerQuit(PlayerQuitEvent event) {
     passengerRewriters.remove(event.getPlayer());
+    defaultMinimapPacketSender.removeViewer(event.getPlayer());
   }
 }
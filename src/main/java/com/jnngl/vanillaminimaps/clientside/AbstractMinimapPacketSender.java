@@ -18,25 +18,49 @@
 package com.jnngl.vanillaminimaps.clientside;
 
 import com.jnngl.vanillaminimaps.map.Minimap;
+import com.jnngl.vanillaminimaps.map.MinimapLayer;
 import com.jnngl.vanillaminimaps.map.SecondaryMinimapLayer;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public abstract class AbstractMinimapPacketSender implements MinimapPacketSender {
 
   @Override
   public void spawnMinimap(Minimap minimap) {
-    spawnLayer(minimap.holder(), minimap.primaryLayer());
+    List<MinimapLayer> layers = new ArrayList<>();
+    layers.add(minimap.primaryLayer());
     for (SecondaryMinimapLayer secondary : minimap.secondaryLayers().values()) {
+      if (minimap.isCombined(secondary) || minimap.fitsMarkerTable(secondary)) {
+        continue;
+      }
+
       if (secondary.getWorld() == null || secondary.getWorld().equals(minimap.holder().getWorld())) {
-        spawnLayer(minimap.holder(), secondary.getBaseLayer());
+        layers.add(secondary.getBaseLayer());
       }
     }
+
+    if (minimap.markerTable() != null) {
+      layers.add(minimap.markerTable().getBaseLayer());
+    }
+
+    spawnLayers(minimap.holder(), layers);
   }
 
   @Override
   public void despawnMinimap(Minimap minimap) {
-    despawnLayer(minimap.holder(), minimap.primaryLayer());
+    List<MinimapLayer> layers = new ArrayList<>();
+    layers.add(minimap.primaryLayer());
     for (SecondaryMinimapLayer secondary : minimap.secondaryLayers().values()) {
-      despawnLayer(minimap.holder(), secondary.getBaseLayer());
+      if (!minimap.isCombined(secondary)) {
+        layers.add(secondary.getBaseLayer());
+      }
     }
+
+    if (minimap.markerTable() != null) {
+      layers.add(minimap.markerTable().getBaseLayer());
+    }
+
+    despawnLayers(minimap.holder(), layers);
   }
 }
@@ -21,17 +21,29 @@ import com.jnngl.vanillaminimaps.map.Minimap;
 import com.jnngl.vanillaminimaps.map.MinimapLayer;
 import org.bukkit.entity.Player;
 
+import java.util.Collection;
+
 public interface MinimapPacketSender {
 
   void updateLayer(Player viewer, MinimapLayer layer, int x, int y, int width, int height, byte[] data);
 
+  EncodedMapPatch encodePatch(int x, int y, int width, int height, byte[] data);
+
+  void updateLayer(Player viewer, MinimapLayer layer, EncodedMapPatch patch);
+
+  boolean isWritable(Player viewer);
+
   void spawnFixedLayer(Player viewer, MinimapLayer layer);
 
   void spawnLayer(Player viewer, MinimapLayer layer);
 
+  void spawnLayers(Player viewer, Collection<MinimapLayer> layers);
+
   void spawnMinimap(Minimap minimap);
 
   void despawnLayer(Player viewer, MinimapLayer layer);
 
+  void despawnLayers(Player viewer, Collection<MinimapLayer> layers);
+
   void despawnMinimap(Minimap minimap);
 }
@@ -0,0 +1,130 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.clientside;
+
+import com.jnngl.vanillaminimaps.map.MinimapLayer;
+import com.jnngl.vanillaminimaps.map.SentMapFrame;
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import org.bukkit.entity.Player;
+
+import java.util.BitSet;
+
+// Map updates of one player that did not fit into the send budget yet. Only the latest contents of each map are
+// kept: newer updates are drawn over the queued ones, so a slow client never receives frames that are already stale.
+public class OutboundMapQueue {
+
+  private static final int SIZE = 128;
+
+  private final Int2ObjectMap<PendingMap> pending = new Int2ObjectLinkedOpenHashMap<>();
+  private int allowance;
+
+  // Starts a new tick. Unused allowance is not carried over, overdrawn allowance is paid back first.
+  public void refill(int budget) {
+    allowance = budget <= 0 ? Integer.MAX_VALUE : Math.min(allowance + budget, budget);
+  }
+
+  public boolean canSend() {
+    return pending.isEmpty() && allowance > 0;
+  }
+
+  public void consume(int bytes) {
+    allowance -= bytes;
+  }
+
+  public boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  public void add(MinimapLayer layer, MapSendPriority priority, int x, int y, int width, int height, byte[] data) {
+    PendingMap map = pending.get(layer.mapId());
+    if (map == null) {
+      map = new PendingMap(layer);
+      pending.put(layer.mapId(), map);
+    }
+
+    map.priority = priority;
+    map.draw(x, y, width, height, data);
+  }
+
+  public void remove(int mapId) {
+    pending.remove(mapId);
+  }
+
+  // Sends queued maps, most important first and otherwise in the order they were queued,
+  // until the allowance of this tick is used up.
+  public void flush(MinimapPacketSender packetSender, Player viewer) {
+    while (allowance > 0 && !pending.isEmpty()) {
+      PendingMap next = null;
+      for (PendingMap map : pending.values()) {
+        if (next == null || map.priority.ordinal() < next.priority.ordinal()) {
+          next = map;
+        }
+      }
+
+      pending.remove(next.layer.mapId());
+      allowance -= next.send(packetSender, viewer);
+    }
+  }
+
+  private static final class PendingMap {
+
+    private final MinimapLayer layer;
+    private final byte[] pixels = new byte[SIZE * SIZE];
+    // Pixels the client doesn't have yet. The others are unknown, so they must not be sent.
+    private final BitSet dirty = new BitSet(SIZE * SIZE);
+    private MapSendPriority priority;
+
+    private PendingMap(MinimapLayer layer) {
+      this.layer = layer;
+    }
+
+    private void draw(int x, int y, int width, int height, byte[] data) {
+      for (int row = 0; row < height; row++) {
+        int start = (y + row) * SIZE + x;
+        System.arraycopy(data, row * width, pixels, start, width);
+        dirty.set(start, start + width);
+      }
+    }
+
+    // Sends every run of changed pixels in a row, together with the rows below it that changed in the same columns.
+    private int send(MinimapPacketSender packetSender, Player viewer) {
+      int bytes = 0;
+      for (int row = 0; row < SIZE; row++) {
+        int rowStart = row * SIZE;
+        int rowEnd = rowStart + SIZE;
+        int from;
+        while ((from = dirty.nextSetBit(rowStart)) >= 0 && from < rowEnd) {
+          int to = Math.min(dirty.nextClearBit(from), rowEnd);
+          int first = from - rowStart;
+          int last = to - 1 - rowStart;
+          int bottom = row;
+          while (bottom + 1 < SIZE && dirty.nextClearBit((bottom + 1) * SIZE + first) > (bottom + 1) * SIZE + last) {
+            bottom++;
+          }
+
+          for (int cleared = row; cleared <= bottom; cleared++) {
+            dirty.clear(cleared * SIZE + first, cleared * SIZE + last + 1);
+          }
+          bytes += SentMapFrame.sendRectangle(packetSender, viewer, layer, pixels, first, row, last, bottom);
+        }
+      }
+      return bytes;
+    }
+  }
+}
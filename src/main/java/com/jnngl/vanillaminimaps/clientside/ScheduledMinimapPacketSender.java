@@ -0,0 +1,196 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.clientside;
+
+import com.jnngl.vanillaminimaps.VanillaMinimaps;
+import com.jnngl.vanillaminimaps.config.Config;
+import com.jnngl.vanillaminimaps.map.Minimap;
+import com.jnngl.vanillaminimaps.map.MinimapLayer;
+import com.jnngl.vanillaminimaps.map.MinimapScale;
+import com.jnngl.vanillaminimaps.map.SecondaryMinimapLayer;
+import com.jnngl.vanillaminimaps.map.SentMapFrame;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Limits how many map bytes are sent to each player per tick. Updates go straight through while a player is
+// within the budget, the rest is queued per map and sent in the next ticks, see OutboundMapQueue.
+public class ScheduledMinimapPacketSender extends AbstractMinimapPacketSender {
+
+  private final VanillaMinimaps plugin;
+  private final MinimapPacketSender delegate;
+  private final Map<Player, OutboundMapQueue> queues = new HashMap<>();
+  private BukkitTask flushTask;
+
+  public ScheduledMinimapPacketSender(VanillaMinimaps plugin, MinimapPacketSender delegate) {
+    this.plugin = plugin;
+    this.delegate = delegate;
+  }
+
+  public void start() {
+    if (flushTask == null) {
+      flushTask = Bukkit.getScheduler().runTaskTimer(plugin, this::flush, 1L, 1L);
+    }
+  }
+
+  public void stop() {
+    if (flushTask != null) {
+      flushTask.cancel();
+      flushTask = null;
+    }
+  }
+
+  public void removeViewer(Player viewer) {
+    queues.remove(viewer);
+  }
+
+  private void flush() {
+    int budget = Config.instance().network.bytesPerTick;
+    Iterator<Map.Entry<Player, OutboundMapQueue>> iterator = queues.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Player, OutboundMapQueue> entry = iterator.next();
+      Player viewer = entry.getKey();
+      if (!viewer.isOnline()) {
+        iterator.remove();
+        continue;
+      }
+
+      OutboundMapQueue queue = entry.getValue();
+      queue.refill(budget);
+      // Nothing is added to the channel while it is backed up, the queue only keeps the latest contents of each map
+      if (!queue.isEmpty() && delegate.isWritable(viewer)) {
+        queue.flush(delegate, viewer);
+      }
+    }
+  }
+
+  private OutboundMapQueue queue(Player viewer) {
+    return queues.computeIfAbsent(viewer, key -> {
+      OutboundMapQueue queue = new OutboundMapQueue();
+      queue.refill(Config.instance().network.bytesPerTick);
+      return queue;
+    });
+  }
+
+  private MapSendPriority priority(Player viewer, MinimapLayer layer) {
+    Minimap minimap = plugin.getPlayerMinimap(viewer);
+    if (minimap == null) {
+      return MapSendPriority.FULLSCREEN;
+    }
+
+    if (layer == minimap.primaryLayer()) {
+      return MapSendPriority.PRIMARY;
+    }
+
+    if (minimap.markerTable() != null && layer == minimap.markerTable().getBaseLayer()) {
+      return MapSendPriority.NEAR_MARKER;
+    }
+
+    for (SecondaryMinimapLayer secondary : minimap.secondaryLayers().values()) {
+      if (secondary.getBaseLayer() == layer) {
+        return isNear(viewer, secondary) ? MapSendPriority.NEAR_MARKER : MapSendPriority.FAR_MARKER;
+      }
+    }
+
+    // Only fullscreen maps are not part of the minimap
+    return MapSendPriority.FULLSCREEN;
+  }
+
+  // Markers at a fixed place on the minimap, or within its range
+  private static boolean isNear(Player viewer, SecondaryMinimapLayer layer) {
+    if (!layer.isTrackLocation()) {
+      return true;
+    }
+
+    double range = 64.0 * MinimapScale.get();
+    double dx = layer.getPositionX() - viewer.getX();
+    double dz = layer.getPositionZ() - viewer.getZ();
+    return dx * dx + dz * dz < range * range;
+  }
+
+  @Override
+  public void updateLayer(Player viewer, MinimapLayer layer, int x, int y, int width, int height, byte[] data) {
+    OutboundMapQueue queue = queue(viewer);
+    if (queue.canSend() && delegate.isWritable(viewer)) {
+      queue.consume(width * height + SentMapFrame.PATCH_OVERHEAD);
+      delegate.updateLayer(viewer, layer, x, y, width, height, data);
+      return;
+    }
+
+    queue.add(layer, priority(viewer, layer), x, y, width, height, data);
+  }
+
+  @Override
+  public EncodedMapPatch encodePatch(int x, int y, int width, int height, byte[] data) {
+    return delegate.encodePatch(x, y, width, height, data);
+  }
+
+  @Override
+  public void updateLayer(Player viewer, MinimapLayer layer, EncodedMapPatch patch) {
+    OutboundMapQueue queue = queue(viewer);
+    if (queue.canSend() && delegate.isWritable(viewer)) {
+      queue.consume(patch.payload().readableBytes() + SentMapFrame.PATCH_OVERHEAD);
+      delegate.updateLayer(viewer, layer, patch);
+      return;
+    }
+
+    queue.add(layer, priority(viewer, layer), patch.x(), patch.y(), patch.width(), patch.height(), patch.data());
+  }
+
+  @Override
+  public boolean isWritable(Player viewer) {
+    return delegate.isWritable(viewer);
+  }
+
+  @Override
+  public void spawnFixedLayer(Player viewer, MinimapLayer layer) {
+    delegate.spawnFixedLayer(viewer, layer);
+  }
+
+  @Override
+  public void spawnLayer(Player viewer, MinimapLayer layer) {
+    delegate.spawnLayer(viewer, layer);
+  }
+
+  @Override
+  public void spawnLayers(Player viewer, Collection<MinimapLayer> layers) {
+    delegate.spawnLayers(viewer, layers);
+  }
+
+  @Override
+  public void despawnLayer(Player viewer, MinimapLayer layer) {
+    despawnLayers(viewer, List.of(layer));
+  }
+
+  @Override
+  public void despawnLayers(Player viewer, Collection<MinimapLayer> layers) {
+    // Layers are spawned again with a reset frame, queued updates would only be sent for nothing
+    OutboundMapQueue queue = queues.get(viewer);
+    if (queue != null) {
+      layers.forEach(layer -> queue.remove(layer.mapId()));
+    }
+
+    delegate.despawnLayers(viewer, layers);
+  }
+}
@@ -19,15 +19,32 @@ package com.jnngl.vanillaminimaps.clientside.impl;
 
 import com.jnngl.vanillaminimaps.VanillaMinimaps;
 import com.jnngl.vanillaminimaps.clientside.AbstractMinimapPacketSender;
+import com.jnngl.vanillaminimaps.clientside.EncodedMapPatch;
 import com.jnngl.vanillaminimaps.clientside.EntityHandle;
+import com.jnngl.vanillaminimaps.injection.EncodedPacketInjector;
 import com.jnngl.vanillaminimaps.injection.PassengerRewriter;
 import com.jnngl.vanillaminimaps.map.MinimapLayer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.VarInt;
+import net.minecraft.network.protocol.BundlerInfo;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundBundlePacket;
 import net.minecraft.network.protocol.game.ClientboundMapItemDataPacket;
 import net.minecraft.network.protocol.game.ClientboundRemoveEntitiesPacket;
 import net.minecraft.network.protocol.game.ClientboundSetEntityDataPacket;
 import net.minecraft.network.protocol.game.ClientboundSetPassengersPacket;
+import net.minecraft.network.protocol.game.GamePacketTypes;
+import net.minecraft.network.protocol.game.GameProtocols;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.network.ServerGamePacketListenerImpl;
 import net.minecraft.server.network.ServerPlayerConnection;
 import net.minecraft.world.entity.decoration.ItemFrame;
 import net.minecraft.world.level.saveddata.maps.MapId;
@@ -35,14 +52,29 @@ import net.minecraft.world.level.saveddata.maps.MapItemSavedData;
 import org.bukkit.craftbukkit.entity.CraftPlayer;
 import org.bukkit.entity.Player;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 public class NMSMinimapPacketSender extends AbstractMinimapPacketSender {
 
   private final VanillaMinimaps plugin;
+  private final int mapItemDataPacketId;
 
   public NMSMinimapPacketSender(VanillaMinimaps plugin) {
     this.plugin = plugin;
+    this.mapItemDataPacketId = findPacketId();
+  }
+
+  private static int findPacketId() {
+    int[] packetId = {-1};
+    GameProtocols.CLIENTBOUND_TEMPLATE.details().listPackets((type, id) -> {
+      if (type == GamePacketTypes.CLIENTBOUND_MAP_ITEM_DATA) {
+        packetId[0] = id;
+      }
+    });
+    return packetId[0];
   }
 
   @Override
@@ -52,18 +84,58 @@ public class NMSMinimapPacketSender extends AbstractMinimapPacketSender {
         new ClientboundMapItemDataPacket(new MapId(layer.mapId()), (byte) 0, false, Collections.emptyList(), patch));
   }
 
-  private void spawnItemFrame(ServerPlayerConnection connection, ItemFrame itemFrame, double offsetY) {
-    ServerPlayer player = connection.getPlayer();
+  @Override
+  public EncodedMapPatch encodePatch(int x, int y, int width, int height, byte[] data) {
+    MapItemSavedData.MapPatch patch = new MapItemSavedData.MapPatch(x, y, width, height, data);
+    RegistryFriendlyByteBuf buf = new RegistryFriendlyByteBuf(Unpooled.buffer(), MinecraftServer.getServer().registryAccess());
+    ClientboundMapItemDataPacket.STREAM_CODEC.encode(buf,
+        new ClientboundMapItemDataPacket(new MapId(0), (byte) 0, false, Collections.emptyList(), patch));
+    // Map id 0 is a single varint byte
+    return new EncodedMapPatch(x, y, width, height, data, buf.slice(1, buf.readableBytes() - 1));
+  }
+
+  @Override
+  public void updateLayer(Player viewer, MinimapLayer layer, EncodedMapPatch patch) {
+    ServerGamePacketListenerImpl connection = ((CraftPlayer) viewer).getHandle().connection;
+    Channel channel = connection.connection.channel;
+    // The placeholder is only swapped by an injector in the pipeline of a live channel, and encoded packets are
+    // only understood by the client in the play phase
+    EncodedPacketInjector injector = channel.pipeline().get(EncodedPacketInjector.class);
+    if (mapItemDataPacketId < 0 || injector == null || !channel.isActive() ||
+        !(connection.connection.getPacketListener() instanceof ServerGamePacketListenerImpl)) {
+      updateLayer(viewer, layer, patch.x(), patch.y(), patch.width(), patch.height(), patch.data());
+      return;
+    }
+
+    // Only the packet id and the map id are written per viewer, the payload is shared.
+    // The buffer still goes through compression and encryption of the channel.
+    ByteBuf prefix = Unpooled.buffer(10);
+    VarInt.write(prefix, mapItemDataPacketId);
+    VarInt.write(prefix, layer.mapId());
+    connection.send(injector.placeholder(layer.mapId(), Unpooled.wrappedBuffer(prefix, patch.payload().retainedDuplicate())));
+  }
+
+  @Override
+  public boolean isWritable(Player viewer) {
+    return ((CraftPlayer) viewer).getHandle().connection.connection.channel.isWritable();
+  }
+
+  private void addItemFrame(ServerPlayer player, ItemFrame itemFrame, double offsetY,
+                            List<Packet<? super ClientGamePacketListener>> packets) {
     itemFrame.setPos(player.getX(), player.getY() + offsetY, player.getZ());
-    connection.send(itemFrame.getAddEntityPacket(NmsServerEntity.create((ServerLevel) itemFrame.level(), itemFrame)));
+    packets.add(itemFrame.getAddEntityPacket(NmsServerEntity.create((ServerLevel) itemFrame.level(), itemFrame)));
     var metadata = itemFrame.getEntityData().getNonDefaultValues();
     if (metadata != null && !metadata.isEmpty()) {
-      connection.send(new ClientboundSetEntityDataPacket(itemFrame.getId(), metadata));
+      packets.add(new ClientboundSetEntityDataPacket(itemFrame.getId(), metadata));
     }
   }
 
-  private void spawnItemFrame(ServerPlayerConnection connection, ItemFrame itemFrame) {
-    spawnItemFrame(connection, itemFrame, 0.0);
+  // Sends the packets as bundles, so the client applies them in the same tick and they are flushed together.
+  private static void sendBundled(ServerPlayerConnection connection, List<Packet<? super ClientGamePacketListener>> packets) {
+    for (int start = 0; start < packets.size(); start += BundlerInfo.BUNDLE_SIZE_LIMIT) {
+      int end = Math.min(packets.size(), start + BundlerInfo.BUNDLE_SIZE_LIMIT);
+      connection.send(new ClientboundBundlePacket(List.copyOf(packets.subList(start, end))));
+    }
   }
 
   public void spawnFixedLayer(Player viewer, MinimapLayer layer) {
@@ -72,40 +144,68 @@ public class NMSMinimapPacketSender extends AbstractMinimapPacketSender {
     EntityHandle<?> handle = upper ? layer.upperFrame() : layer.lowerFrame();
     ItemFrame frame = (ItemFrame) handle.entity();
 
-    ServerPlayerConnection connection = ((CraftPlayer) viewer).getHandle().connection;
-    spawnItemFrame(connection, frame, offset);
+    ServerPlayer player = ((CraftPlayer) viewer).getHandle();
+    List<Packet<? super ClientGamePacketListener>> packets = new ArrayList<>(2);
+    addItemFrame(player, frame, offset, packets);
+    sendBundled(player.connection, packets);
   }
 
   @Override
   public void spawnLayer(Player viewer, MinimapLayer layer) {
-    ItemFrame lowerFrame = (ItemFrame) layer.lowerFrame().entity();
-    ItemFrame upperFrame = (ItemFrame) layer.upperFrame().entity();
+    spawnLayers(viewer, List.of(layer));
+  }
 
-    ServerPlayerConnection connection = ((CraftPlayer) viewer).getHandle().connection;
-    spawnItemFrame(connection, lowerFrame);
-    spawnItemFrame(connection, upperFrame);
+  @Override
+  public void spawnLayers(Player viewer, Collection<MinimapLayer> layers) {
+    if (layers.isEmpty()) {
+      return;
+    }
 
+    ServerPlayer player = ((CraftPlayer) viewer).getHandle();
     PassengerRewriter rewriter = plugin.getPassengerRewriter(viewer);
-    rewriter.addPassenger(viewer.getEntityId(), lowerFrame.getId());
-    rewriter.addPassenger(viewer.getEntityId(), upperFrame.getId());
+    List<Packet<? super ClientGamePacketListener>> packets = new ArrayList<>(layers.size() * 4 + 1);
+    for (MinimapLayer layer : layers) {
+      ItemFrame lowerFrame = (ItemFrame) layer.lowerFrame().entity();
+      ItemFrame upperFrame = (ItemFrame) layer.upperFrame().entity();
+      addItemFrame(player, lowerFrame, 0.0, packets);
+      addItemFrame(player, upperFrame, 0.0, packets);
+
+      rewriter.addPassenger(viewer.getEntityId(), lowerFrame.getId());
+      rewriter.addPassenger(viewer.getEntityId(), upperFrame.getId());
+    }
 
-    connection.send(new ClientboundSetPassengersPacket(((CraftPlayer) viewer).getHandle()));
+    // One passengers update for all layers, PassengerRewriter adds the frames to it
+    packets.add(new ClientboundSetPassengersPacket(player));
+    sendBundled(player.connection, packets);
   }
 
   @Override
   public void despawnLayer(Player viewer, MinimapLayer layer) {
-    ItemFrame lowerFrame = (ItemFrame) layer.lowerFrame().entity();
-    ItemFrame upperFrame = (ItemFrame) layer.upperFrame().entity();
+    despawnLayers(viewer, List.of(layer));
+  }
+
+  @Override
+  public void despawnLayers(Player viewer, Collection<MinimapLayer> layers) {
+    if (layers.isEmpty()) {
+      return;
+    }
 
-    ServerPlayerConnection connection = ((CraftPlayer) viewer).getHandle().connection;
-    connection.send(new ClientboundRemoveEntitiesPacket(lowerFrame.getId(), upperFrame.getId()));
+    IntList entityIds = new IntArrayList(layers.size() * 2);
+    for (MinimapLayer layer : layers) {
+      entityIds.add(((ItemFrame) layer.lowerFrame().entity()).getId());
+      entityIds.add(((ItemFrame) layer.upperFrame().entity()).getId());
+    }
 
     PassengerRewriter rewriter = plugin.getPassengerRewriter(viewer);
     if (rewriter != null) {
-      rewriter.removePassenger(viewer.getEntityId(), lowerFrame.getId());
-      rewriter.removePassenger(viewer.getEntityId(), upperFrame.getId());
+      for (int i = 0; i < entityIds.size(); i++) {
+        rewriter.removePassenger(viewer.getEntityId(), entityIds.getInt(i));
+      }
     }
 
-    connection.send(new ClientboundSetPassengersPacket(((CraftPlayer) viewer).getHandle()));
+    ServerPlayer player = ((CraftPlayer) viewer).getHandle();
+    sendBundled(player.connection, List.of(
+        new ClientboundRemoveEntitiesPacket(entityIds),
+        new ClientboundSetPassengersPacket(player)));
   }
 }
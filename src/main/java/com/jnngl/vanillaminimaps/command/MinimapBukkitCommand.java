@@ -278,7 +278,7 @@ public class MinimapBukkitCommand implements TabExecutor {
               Config.instance().markers.customMarkers.stickToBorder, player.getWorld(), (int) player.getX(), (int) player.getZ(), depth);
       minimap.secondaryLayers().put(markerName, iconLayer);
 
-      plugin.packetSender().spawnLayer(player, iconBaseLayer);
+      minimap.spawnSecondaryLayer(plugin, iconLayer);
       minimap.update(plugin);
 
       if (!save(minimap)) {
@@ -365,7 +365,7 @@ public class MinimapBukkitCommand implements TabExecutor {
         continue;
       }
 
-      plugin.packetSender().despawnLayer(minimap.holder(), marker.getBaseLayer());
+      minimap.despawnSecondaryLayer(plugin, marker);
       minimap.update(plugin);
 
       if (!save(minimap)) {
@@ -345,7 +345,7 @@ public class MinimapCommand extends BrigadierCommand {
         continue;
       }
 
-      getPlugin().packetSender().despawnLayer(minimap.holder(), marker.getBaseLayer());
+      minimap.despawnSecondaryLayer(getPlugin(), marker);
       minimap.update(getPlugin());
 
       if (!save(minimap)) {
@@ -404,7 +404,7 @@ public class MinimapCommand extends BrigadierCommand {
               Config.instance().markers.customMarkers.stickToBorder, player.getWorld(), (int) player.getX(), (int) player.getZ(), depth);
       minimap.secondaryLayers().put(markerName, iconLayer);
 
-      getPlugin().packetSender().spawnLayer(player, iconBaseLayer);
+      minimap.spawnSecondaryLayer(getPlugin(), iconLayer);
       minimap.update(getPlugin());
 
       if (!save(minimap)) {
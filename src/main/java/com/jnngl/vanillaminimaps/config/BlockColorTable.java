@@ -0,0 +1,103 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.config;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.world.level.EmptyBlockGetter;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.material.FluidState;
+import net.minecraft.world.level.material.MapColor;
+
+import java.util.Map;
+
+// Dense lookup table indexed by Block.BLOCK_STATE_REGISTRY id, resolved once per BlockConfig reload.
+public final class BlockColorTable {
+
+  // 0  - 8 bits - resolved map color id
+  // 8  - 1 bit  - map-transparent (no vanilla map color)
+  // 9  - 1 bit  - has a fluid state
+  // 16 - 8 bits - resolved map color id when the state is the surface of a fluid column
+  private static final int COLOR_MASK = 0xFF;
+  private static final int TRANSPARENT = 1 << 8;
+  private static final int FLUID = 1 << 9;
+  private static final int FLUID_COLOR_SHIFT = 16;
+
+  private final int[] entries;
+
+  private BlockColorTable(int[] entries) {
+    this.entries = entries;
+  }
+
+  public static BlockColorTable build(Map<BlockState, MapColor> overrides) {
+    int[] entries = new int[Block.BLOCK_STATE_REGISTRY.size()];
+    for (BlockState state : Block.BLOCK_STATE_REGISTRY) {
+      int entry = resolveColor(state, overrides);
+      if (state.getMapColor(EmptyBlockGetter.INSTANCE, BlockPos.ZERO) == MapColor.NONE) {
+        entry |= TRANSPARENT;
+      }
+
+      FluidState fluid = state.getFluidState();
+      BlockState surface = state;
+      if (!fluid.isEmpty()) {
+        entry |= FLUID;
+        if (!state.isFaceSturdy(EmptyBlockGetter.INSTANCE, BlockPos.ZERO, Direction.UP)) {
+          surface = fluid.createLegacyBlock();
+        }
+      }
+
+      entry |= resolveColor(surface, overrides) << FLUID_COLOR_SHIFT;
+      entries[Block.BLOCK_STATE_REGISTRY.getId(state)] = entry;
+    }
+
+    return new BlockColorTable(entries);
+  }
+
+  private static int resolveColor(BlockState state, Map<BlockState, MapColor> overrides) {
+    MapColor color = overrides.get(state);
+    if (color == null) {
+      color = state.getMapColor(EmptyBlockGetter.INSTANCE, BlockPos.ZERO);
+    }
+    return color.id;
+  }
+
+  public static int colorId(int entry) {
+    return entry & COLOR_MASK;
+  }
+
+  public static int fluidColorId(int entry) {
+    return entry >>> FLUID_COLOR_SHIFT & COLOR_MASK;
+  }
+
+  public static boolean isTransparent(int entry) {
+    return (entry & TRANSPARENT) != 0;
+  }
+
+  public static boolean isFluid(int entry) {
+    return (entry & FLUID) != 0;
+  }
+
+  public int entry(int stateId) {
+    return entries[stateId];
+  }
+
+  public int entry(BlockState state) {
+    return entries[Block.BLOCK_STATE_REGISTRY.getId(state)];
+  }
+}
@@ -36,6 +36,9 @@ public class BlockConfig extends YamlSerializable {
   @Getter
   private transient Map<BlockState, MapColor> resolvedOverrides;
 
+  @Getter
+  private transient BlockColorTable colorTable;
+
   @Override
   public LoadResult reload(Path path) {
     LoadResult result = super.reload(path);
@@ -61,6 +64,7 @@ public class BlockConfig extends YamlSerializable {
       resolvedOverrides = Map.of();
     }
 
+    colorTable = BlockColorTable.build(resolvedOverrides);
     return result;
   }
 }
@@ -23,6 +23,9 @@ import net.elytrium.serializer.annotations.CommentValue;
 import net.elytrium.serializer.annotations.NewLine;
 import net.elytrium.serializer.language.object.YamlSerializable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Config extends YamlSerializable {
 
   private static final Config INSTANCE = new Config();
@@ -88,6 +91,13 @@ public class Config extends YamlSerializable {
       @Comment(@CommentValue("How often to update other player markers, in ticks (20 ticks = 1 second)."))
       public int updateIntervalTicks = 40;
     }
+
+    @Comment({
+        @CommentValue("Draw markers with icons up to 14x14 pixels into one shared map layer, instead of one map and"),
+        @CommentValue("two item frames per marker. The layer holds up to 56 markers, further markers keep their own"),
+        @CommentValue("layer. Requires the current resource pack.")
+    })
+    public boolean combineLayers = false;
   }
 
   public Fullscreen fullscreen = new Fullscreen();
@@ -100,6 +110,75 @@ public class Config extends YamlSerializable {
     public int segmentsZ = 3;
   }
 
+  public Rendering rendering = new Rendering();
+
+  public static class Rendering {
+
+    @Comment(@CommentValue("Render world tiles on worker threads from chunk snapshots instead of the main thread."))
+    public boolean asyncTiles = false;
+
+    @Comment(@CommentValue("Number of worker threads used for asynchronous tile rendering."))
+    public int workerThreads = 2;
+
+    @Comment({
+        @CommentValue("Load chunks that are needed to render minimap tiles."),
+        @CommentValue("When disabled, only loaded chunks are rendered. Missing chunks are loaded asynchronously"),
+        @CommentValue("without being generated, and tiles are filled in as soon as they load.")
+    })
+    public boolean loadChunks = false;
+
+    @Comment({
+        @CommentValue("Keep the minimap texture aligned to the world and let the shader wrap it around the player,"),
+        @CommentValue("so moving only sends the newly exposed rows and columns. Requires the current resource pack.")
+    })
+    public boolean worldAlignedTexture = false;
+  }
+
+  public Network network = new Network();
+
+  public static class Network {
+
+    @Comment({
+        @CommentValue("Map bytes sent to each player per tick at most, 0 = unlimited. Updates over the budget are sent"),
+        @CommentValue("in the next ticks, the minimap first, then markers, then the fullscreen map. Only the latest"),
+        @CommentValue("contents of each map are sent, also while the connection of a player is backed up.")
+    })
+    public int bytesPerTick = 32768;
+  }
+
+  public TileCache tileCache = new TileCache();
+
+  public static class TileCache {
+
+    @Comment(@CommentValue("How long a tile stays cached after its last viewer left, in seconds."))
+    public int keepAliveSeconds = 60;
+
+    @Comment(@CommentValue("Tiles nobody views for this many seconds are kept compressed."))
+    public int compressAfterSeconds = 10;
+
+    @Comment({
+        @CommentValue("Memory budget of cached tiles, in megabytes. Once it is exceeded, tiles nobody views"),
+        @CommentValue("are evicted before their keep-alive time, least recently used first.")
+    })
+    public int memoryBudgetMegabytes = 128;
+
+    @Comment({
+        @CommentValue("Regions whose tiles are never evicted once rendered, e.g. spawn."),
+        @CommentValue("Format: world:minX:minZ:maxX:maxZ (block coordinates)")
+    })
+    public List<String> pinnedRegions = new ArrayList<>();
+
+    @Comment({
+        @CommentValue("Store rendered tiles on disk, so they don't have to be rendered again after a restart."),
+        @CommentValue("Changes made to the world while the server is offline (external editors, restored backups)"),
+        @CommentValue("are not picked up, so only enable this if the world is never edited that way.")
+    })
+    public boolean persistent = false;
+
+    @Comment(@CommentValue("Keep tile colors in direct memory instead of the Java heap."))
+    public boolean offHeap = false;
+  }
+
   public enum MinimapShape {
     CIRCLE,
     SQUARE
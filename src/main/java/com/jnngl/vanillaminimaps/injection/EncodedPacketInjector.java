@@ -0,0 +1,102 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.injection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import net.minecraft.network.protocol.game.ClientboundMapItemDataPacket;
+import net.minecraft.world.level.saveddata.maps.MapId;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// Sends packets that were already encoded through Connection.send, so they keep their place among the other
+// packets of the connection. A placeholder packet without contents is sent instead and swapped for the encoded
+// packet right before the encoder. Plugins that inspect packets only ever see the empty placeholder.
+// Placeholders that never reach the handler, e.g. because the connection dropped them on disconnect, have their
+// encoded packet released once the channel goes away.
+public class EncodedPacketInjector extends ChannelDuplexHandler {
+
+  // Guarded by itself
+  private final Map<ClientboundMapItemDataPacket, ByteBuf> placeholders = new IdentityHashMap<>();
+  private boolean released;
+
+  public ClientboundMapItemDataPacket placeholder(int mapId, ByteBuf encoded) {
+    ClientboundMapItemDataPacket packet =
+        new ClientboundMapItemDataPacket(new MapId(mapId), (byte) 0, false, Optional.empty(), Optional.empty());
+    synchronized (placeholders) {
+      if (!released) {
+        placeholders.put(packet, encoded);
+        return packet;
+      }
+    }
+
+    // The channel is gone, nothing is written anymore
+    encoded.release();
+    return packet;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (msg instanceof ClientboundMapItemDataPacket packet) {
+      ByteBuf encoded;
+      synchronized (placeholders) {
+        encoded = placeholders.remove(packet);
+      }
+
+      if (encoded != null) {
+        ctx.write(encoded, promise);
+        return;
+      }
+    }
+
+    ctx.write(msg, promise);
+  }
+
+  @Override
+  public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+    releaseAll();
+    ctx.close(promise);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    releaseAll();
+    ctx.fireChannelInactive();
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    releaseAll();
+  }
+
+  private void releaseAll() {
+    List<ByteBuf> pending;
+    synchronized (placeholders) {
+      released = true;
+      pending = new ArrayList<>(placeholders.values());
+      placeholders.clear();
+    }
+    pending.forEach(ByteBuf::release);
+  }
+}
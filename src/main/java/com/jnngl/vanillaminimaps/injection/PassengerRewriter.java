@@ -24,6 +24,8 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientboundBundlePacket;
 import net.minecraft.network.protocol.game.ClientboundSetPassengersPacket;
 
 import java.lang.reflect.Field;
@@ -46,14 +48,12 @@ public class PassengerRewriter extends ChannelOutboundHandlerAdapter {
   @Override
   public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
     if (msg instanceof ClientboundSetPassengersPacket packet) {
-      int vehicle = packet.getVehicle();
-      IntList passengers = this.passengers.get(vehicle);
-      if (passengers != null) {
-        synchronized (passengers) {
-          int[] merged = mergePassengers(packet.getPassengers(), passengers);
-          if (merged != packet.getPassengers()) {
-            setPassengers(packet, merged);
-          }
+      rewrite(packet);
+    } else if (msg instanceof ClientboundBundlePacket bundle) {
+      // Bundles are only split up closer to the encoder
+      for (Packet<?> subPacket : bundle.subPackets()) {
+        if (subPacket instanceof ClientboundSetPassengersPacket packet) {
+          rewrite(packet);
         }
       }
     }
@@ -61,6 +61,19 @@ public class PassengerRewriter extends ChannelOutboundHandlerAdapter {
     ctx.write(msg, promise);
   }
 
+  private void rewrite(ClientboundSetPassengersPacket packet) {
+    int vehicle = packet.getVehicle();
+    IntList passengers = this.passengers.get(vehicle);
+    if (passengers != null) {
+      synchronized (passengers) {
+        int[] merged = mergePassengers(packet.getPassengers(), passengers);
+        if (merged != packet.getPassengers()) {
+          setPassengers(packet, merged);
+        }
+      }
+    }
+  }
+
   public Int2ObjectMap<IntList> passengers() {
     return this.passengers;
   }
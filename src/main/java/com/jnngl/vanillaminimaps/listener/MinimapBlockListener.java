@@ -18,18 +18,24 @@
 package com.jnngl.vanillaminimaps.listener;
 
 import com.jnngl.vanillaminimaps.VanillaMinimaps;
+import com.jnngl.vanillaminimaps.map.MinimapScale;
+import com.jnngl.vanillaminimaps.map.renderer.world.cache.SnapshotWorldMinimapRenderer;
 import com.jnngl.vanillaminimaps.map.renderer.world.cache.WorldMapCache;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.*;
 import org.bukkit.event.entity.EntityChangeBlockEvent;
 import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.plugin.Plugin;
 import org.joml.Vector4i;
 
@@ -54,6 +60,7 @@ public class MinimapBlockListener implements Listener {
     EVENTS.forEach(eventClass ->
         Bukkit.getPluginManager().registerEvent(eventClass, this, EventPriority.HIGH,
             (listener, event) -> onBlockChange(event), plugin));
+    Bukkit.getPluginManager().registerEvents(this, plugin);
   }
 
   public void registerCache(WorldMapCache<?> cache) {
@@ -69,18 +76,7 @@ public class MinimapBlockListener implements Listener {
   }
 
   protected void updateBlock(Block block, WorldMapCache<?> cache) {
-    byte[] data = cache.getCached(block.getWorld(), block.getX() + 64, block.getZ() + 64);
-    if (data != null) {
-      int offsetX = (block.getX() - 64) % 128;
-      int offsetZ = (block.getZ() - 64) % 128;
-      if (offsetX < 0) {
-        offsetX += 128;
-      }
-      if (offsetZ < 0) {
-        offsetZ += 128;
-      }
-      cache.getRenderer().updateBlock(block, (127 - offsetZ) * 128 + (127 - offsetX), data);
-    }
+    cache.updateColumn(block);
   }
 
   protected void update(Block block, WorldMapCache<?> cache, boolean updateNeighbourBlocks) {
@@ -88,6 +84,22 @@ public class MinimapBlockListener implements Listener {
       return;
     }
 
+    if (cache.getRenderer() instanceof SnapshotWorldMinimapRenderer) {
+      // Only the pixel south of a changed column depends on its height. The neighbours are still re-sampled,
+      // since some events (e.g. pistons) don't report the block that actually changed.
+      Vector4i area = new Vector4i(block.getX(), block.getZ(), 1, MinimapScale.get() + 1);
+      cache.updateColumn(block);
+      if (updateNeighbourBlocks) {
+        cache.updateColumn(block.getRelative(-1, 0, 0));
+        cache.updateColumn(block.getRelative(1, 0, 0));
+        cache.updateColumn(block.getRelative(0, 0, -1));
+        cache.updateColumn(block.getRelative(0, 0, 1));
+        area.add(-1, -1, 2, 2);
+      }
+      cache.notifyDirtyArea(block.getWorld(), area);
+      return;
+    }
+
     Vector4i area = new Vector4i(block.getX(), block.getZ(), 1, 1);
     updateBlock(block, cache);
     if (updateNeighbourBlocks) {
@@ -100,6 +112,18 @@ public class MinimapBlockListener implements Listener {
     cache.notifyDirtyArea(block.getWorld(), area);
   }
 
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onChunkLoad(ChunkLoadEvent event) {
+    Chunk chunk = event.getChunk();
+    registeredCache.forEach(cache -> cache.chunkLoaded(chunk.getWorld(), chunk.getX(), chunk.getZ()));
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onChunkUnload(ChunkUnloadEvent event) {
+    Chunk chunk = event.getChunk();
+    registeredCache.forEach(cache -> cache.getRenderer().unloadChunk(chunk.getWorld(), chunk.getX(), chunk.getZ()));
+  }
+
   private void onBlockChange(Event event) {
     Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, () -> {
       if (event instanceof BlockExplodeEvent explode) {
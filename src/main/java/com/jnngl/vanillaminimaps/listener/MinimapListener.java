@@ -116,15 +116,19 @@ public class MinimapListener implements Listener {
       SecondaryMinimapLayer playerIconLayer = new MarkerMinimapLayer(playerIconBaseLayer, playerIconRenderer, false, false, null, 64, 64, 0.4F);
       minimap.secondaryLayers().put("player", playerIconLayer);
 
-      packetSender.spawnLayer(player, playerIconBaseLayer);
+      minimap.spawnSecondaryLayer(plugin, playerIconLayer);
     }
 
     if (worldRenderer instanceof CacheableWorldMinimapRenderer cacheable) {
       cacheable.getWorldMapCache().setCallback(player.getUniqueId(), area -> {
         int range = 64 * MinimapScale.get();
-        if (area.x() >= player.getX() - range && area.y() >= player.getZ() - range &&
-            area.x() + area.z() <= player.getX() + range && area.y() + area.w() <= player.getZ() + range &&
-            requestedUpdates.add(player.getUniqueId())) {
+        if (area.x() > player.getX() + range || area.y() > player.getZ() + range ||
+            area.x() + area.z() < player.getX() - range || area.y() + area.w() < player.getZ() - range) {
+          return;
+        }
+
+        minimap.invalidatePixels();
+        if (requestedUpdates.add(player.getUniqueId())) {
           Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, () -> {
             if (requestedUpdates.remove(player.getUniqueId())) {
               minimap.update(plugin, player.getX(), player.getZ(), false);
@@ -339,7 +343,7 @@ public class MinimapListener implements Listener {
         layer = new MarkerMinimapLayer(baseLayer, renderer, true, otherPlayers.keepOnEdge, target.getWorld(),
             location.getBlockX(), location.getBlockZ(), 0.35F);
         minimap.secondaryLayers().put(key, layer);
-        plugin.packetSender().spawnLayer(viewer, baseLayer);
+        minimap.spawnSecondaryLayer(plugin, layer);
       } else if (!(layer.getRenderer() instanceof MinimapIconRenderer iconRenderer)
           || !Objects.equals(iconRenderer.icon(), icon)
           || !Objects.equals(iconRenderer.fullscreenIcon(), offscreenIcon)) {
@@ -362,7 +366,7 @@ public class MinimapListener implements Listener {
       if (activeKeys.contains(entry.getKey())) {
         continue;
       }
-      plugin.packetSender().despawnLayer(viewer, entry.getValue().getBaseLayer());
+      minimap.despawnSecondaryLayer(plugin, entry.getValue());
       iterator.remove();
     }
 
@@ -392,7 +396,7 @@ public class MinimapListener implements Listener {
       if (layer == null) {
         continue;
       }
-      plugin.packetSender().despawnLayer(minimap.holder(), layer.getBaseLayer());
+      minimap.despawnSecondaryLayer(plugin, layer);
     }
   }
 
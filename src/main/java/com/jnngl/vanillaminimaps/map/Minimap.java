@@ -21,11 +21,14 @@ import com.jnngl.vanillaminimaps.clientside.MinimapPacketSender;
 import com.jnngl.vanillaminimaps.config.Config;
 import com.jnngl.vanillaminimaps.map.icon.MinimapIcon;
 import com.jnngl.vanillaminimaps.map.marker.MarkerMinimapLayer;
+import com.jnngl.vanillaminimaps.map.marker.MarkerTable;
 import com.jnngl.vanillaminimaps.map.renderer.MinimapIconRenderer;
 import com.jnngl.vanillaminimaps.map.renderer.MinimapLayerRenderer;
+import com.jnngl.vanillaminimaps.map.renderer.SecondaryMinimapLayerRenderer;
 import com.jnngl.vanillaminimaps.map.renderer.encoder.PrimaryMapEncoder;
 import com.jnngl.vanillaminimaps.map.renderer.encoder.SecondaryMapEncoder;
 import com.jnngl.vanillaminimaps.map.renderer.world.cache.CacheableWorldMinimapRenderer;
+import com.jnngl.vanillaminimaps.map.renderer.world.cache.TileView;
 import com.jnngl.vanillaminimaps.map.renderer.world.cache.WorldMapCache;
 import it.unimi.dsi.fastutil.longs.LongList;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
@@ -35,7 +38,9 @@ import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.function.Consumer;
 
 @ToString
 @EqualsAndHashCode
@@ -45,6 +50,31 @@ public final class Minimap {
   private final MinimapLayer primaryLayer;
   private final LinkedHashMap<String, SecondaryMinimapLayer> secondaryLayers;
   private MinimapScreenPosition screenPosition;
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private final SentMapFrame sentFrame = new SentMapFrame();
+  // Created once the first marker is combined into it
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private MarkerTable markerTable;
+  // Reused for every update, SentMapFrame copies whatever it sends
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private final byte[] frame = new byte[128 * 128];
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private final byte[] secondaryFrame = new byte[128 * 128];
+  // Scale and scaled block the primary pixels were rendered at, 0 if they have to be rendered again.
+  // Moving within that block only changes the header.
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private int renderedScale;
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private long renderedBlock;
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private boolean renderedWorldAligned;
 
   public Minimap(Player holder, MinimapScreenPosition screenPosition, MinimapLayer primaryLayer,
                  LinkedHashMap<String, SecondaryMinimapLayer> secondaryLayers) {
@@ -55,11 +85,36 @@ public final class Minimap {
   }
 
   public void update(MinimapProvider provider, double playerX, double playerZ, boolean updateViewerKeys) {
-    byte[] layer = new byte[128 * 128];
+    boolean right = screenPosition == MinimapScreenPosition.RIGHT;
     MinimapLayerRenderer primaryRenderer = primaryLayer.renderer();
+    int scale = MinimapScale.get();
+    int scaledX = (int) Math.floor(playerX / scale);
+    int scaledZ = (int) Math.floor(playerZ / scale);
+    long block = (long) scaledX << 32 | (scaledZ & 0xFFFFFFFFL);
+    boolean worldAligned = primaryRenderer instanceof CacheableWorldMinimapRenderer &&
+        Config.instance().rendering.worldAlignedTexture;
+    Consumer<byte[]> headerEncoder = header -> {
+      PrimaryMapEncoder.encodePrimaryLayer(right, playerX, playerZ, header);
+      if (worldAligned) {
+        PrimaryMapEncoder.encodeWorldAlignment(scaledX, scaledZ, header);
+      }
+    };
+    if (renderedScale == scale && renderedBlock == block && renderedWorldAligned == worldAligned &&
+        sentFrame.sendHeader(provider.packetSender(), holder, primaryLayer, headerEncoder)) {
+      updateSecondaryLayers(provider);
+      return;
+    }
+
+    byte[] layer = frame;
+    renderedScale = 0;
     if (primaryRenderer instanceof CacheableWorldMinimapRenderer cacheableRenderer) {
-      int scale = MinimapScale.get();
-      if (scale == 1) {
+      // Cached tiles notify about changes, which invalidates the pixels
+      renderedScale = scale;
+      renderedBlock = block;
+      renderedWorldAligned = worldAligned;
+      if (worldAligned) {
+        renderWorldAligned(cacheableRenderer.getWorldMapCache(), scale, playerX, playerZ, layer);
+      } else if (scale == 1) {
         int blockX = (int) Math.floor(playerX);
         int blockZ = (int) Math.floor(playerZ);
         int alignedTrackX = (blockX >> 7) << 7;
@@ -75,41 +130,30 @@ public final class Minimap {
         if (offsetZ < 0) {
           offsetZ += 128;
         }
-        byte[] data = cacheableRenderer.getWorldMapCache().get(holder.getWorld(), alignedX, alignedZ);
-        byte[] dataRight = cacheableRenderer.getWorldMapCache().get(holder.getWorld(), alignedX + 128, alignedZ);
-        byte[] dataUpRight = cacheableRenderer.getWorldMapCache().get(holder.getWorld(), alignedX + 128, alignedZ + 128);
-        byte[] dataUp = cacheableRenderer.getWorldMapCache().get(holder.getWorld(), alignedX, alignedZ + 128);
-        LongList usedChunks = LongList.of(
-            WorldMapCache.getKey(holder.getWorld(), alignedTrackX, alignedTrackZ),
-            WorldMapCache.getKey(holder.getWorld(), alignedTrackX + 128, alignedTrackZ),
-            WorldMapCache.getKey(holder.getWorld(), alignedTrackX + 128, alignedTrackZ + 128),
-            WorldMapCache.getKey(holder.getWorld(), alignedTrackX, alignedTrackZ + 128)
-        );
-        for (int z = 0; z < 128; z++) {
-          for (int x = 0; x < 128; x++) {
-            int dataX = x - offsetX;
-            int dataZ = z - offsetZ;
-            byte[] buffer = data;
-
-            if (dataX < 0 && dataZ < 0) {
-              dataX += 128;
-              dataZ += 128;
-              buffer = dataUpRight;
-            } else if (dataX < 0) {
-              dataX += 128;
-              buffer = dataRight;
-            } else if (dataZ < 0) {
-              dataZ += 128;
-              buffer = dataUp;
-            }
-
-            if (dataX > 0 && dataZ > 0) {
-              layer[(127 - dataZ) * 128 + (127 - dataX)] = buffer[(127 - z) * 128 + (127 - x)];
-            }
-          }
+        TileView data = cacheableRenderer.getWorldMapCache().get(holder.getWorld(), alignedX, alignedZ);
+        TileView dataRight = cacheableRenderer.getWorldMapCache().get(holder.getWorld(), alignedX + 128, alignedZ);
+        TileView dataUpRight = cacheableRenderer.getWorldMapCache().get(holder.getWorld(), alignedX + 128, alignedZ + 128);
+        TileView dataUp = cacheableRenderer.getWorldMapCache().get(holder.getWorld(), alignedX, alignedZ + 128);
+        // Each row is two spans, the last row and column stay empty
+        for (int row = 0; row < 127; row++) {
+          boolean wrapped = row < offsetZ;
+          TileView buffer = wrapped ? dataUp : data;
+          TileView bufferRight = wrapped ? dataUpRight : dataRight;
+          int inputRow = (wrapped ? row + 128 - offsetZ : row - offsetZ) * 128;
+          int outputRow = row * 128;
+          buffer.copyTo(inputRow, layer, outputRow + offsetX, 127 - offsetX);
+          bufferRight.copyTo(inputRow + 128 - offsetX, layer, outputRow, offsetX);
+          layer[outputRow + 127] = 0;
         }
+        Arrays.fill(layer, 127 * 128, 128 * 128, (byte) 0);
 
         if (updateViewerKeys) {
+          LongList usedChunks = LongList.of(
+              WorldMapCache.getKey(holder.getWorld(), alignedTrackX, alignedTrackZ),
+              WorldMapCache.getKey(holder.getWorld(), alignedTrackX + 128, alignedTrackZ),
+              WorldMapCache.getKey(holder.getWorld(), alignedTrackX + 128, alignedTrackZ + 128),
+              WorldMapCache.getKey(holder.getWorld(), alignedTrackX, alignedTrackZ + 128)
+          );
           cacheableRenderer.getWorldMapCache().setViewerChunks(holder.getUniqueId(), usedChunks);
         }
       } else {
@@ -117,89 +161,192 @@ public final class Minimap {
         int centerZ = ((int) Math.floor(playerZ / scale)) * scale;
         int startX = centerX - 64 * scale;
         int startZ = centerZ - 64 * scale;
-        int endX = startX + 128 * scale - 1;
-        int endZ = startZ + 128 * scale - 1;
         WorldMapCache<?> cache = cacheableRenderer.getWorldMapCache();
         World world = holder.getWorld();
 
+        // Scaled tiles are addressed in scaled coordinates, startX and startZ are multiples of the scale
+        int scaledStartX = startX / scale;
+        int scaledStartZ = startZ / scale;
         for (int z = 0; z < 128; z++) {
-          int worldZ = startZ + z * scale;
-          int alignedZ = ((worldZ + 64) >> 7) << 7;
-          int dataZ = worldZ - (alignedZ - 64);
-          for (int x = 0; x < 128; x++) {
-            int worldX = startX + x * scale;
-            int alignedX = ((worldX + 64) >> 7) << 7;
-            int dataX = worldX - (alignedX - 64);
-            byte[] buffer = cache.get(world, alignedX, alignedZ);
-            int inputIndex = (127 - dataZ) * 128 + (127 - dataX);
-            int outputIndex = (127 - z) * 128 + (127 - x);
-            layer[outputIndex] = buffer[inputIndex];
+          int scaledZ = scaledStartZ + z;
+          int alignedZ = ((scaledZ + 64) >> 7) << 7;
+          int dataZ = scaledZ - (alignedZ - 64);
+          // Both the map and the tiles are mirrored, so each tile covers one contiguous span of the row
+          for (int x = 0; x < 128; ) {
+            int scaledX = scaledStartX + x;
+            int alignedX = ((scaledX + 64) >> 7) << 7;
+            int dataX = scaledX - (alignedX - 64);
+            int length = Math.min(128 - x, 128 - dataX);
+            TileView buffer = cache.get(world, scale, alignedX, alignedZ);
+            buffer.copyTo((127 - dataZ) * 128 + 128 - dataX - length, layer, (127 - z) * 128 + 128 - x - length, length);
+            x += length;
           }
         }
 
-        boolean updateKeys = updateViewerKeys || scale != 1;
-        if (updateKeys) {
-          LongArrayList usedChunks = new LongArrayList();
-          int alignedStartX = ((startX + 64) >> 7) << 7;
-          int alignedStartZ = ((startZ + 64) >> 7) << 7;
-          int alignedEndX = ((endX + 64) >> 7) << 7;
-          int alignedEndZ = ((endZ + 64) >> 7) << 7;
-          for (int x = alignedStartX; x <= alignedEndX; x += 128) {
-            for (int z = alignedStartZ; z <= alignedEndZ; z += 128) {
-              usedChunks.add(WorldMapCache.getKey(world, x, z));
-            }
-          }
-          cacheableRenderer.getWorldMapCache().setViewerChunks(holder.getUniqueId(), usedChunks);
-        }
+        trackViewedTiles(cache, scale, scaledStartX, scaledStartZ);
       }
     } else {
+      Arrays.fill(layer, (byte) 0);
       primaryRenderer.render(this, primaryLayer, layer);
     }
-    PrimaryMapEncoder.encodePrimaryLayer(screenPosition == MinimapScreenPosition.RIGHT, playerX, playerZ, layer);
-    provider.packetSender().updateLayer(holder, primaryLayer, 0, 0, 128, 128, layer);
+    headerEncoder.accept(layer);
+    sentFrame.send(provider.packetSender(), holder, primaryLayer, layer);
 
     updateSecondaryLayers(provider);
   }
 
+  // Places every scaled column at 127 - (coordinate mod 128) instead of centering the map on the player, the shader
+  // wraps the texture around. Moving then only changes the newly exposed rows and columns.
+  private void renderWorldAligned(WorldMapCache<?> cache, int scale, double playerX, double playerZ, byte[] layer) {
+    World world = holder.getWorld();
+    int scaledStartX = (int) Math.floor(playerX / scale) - 64;
+    int scaledStartZ = (int) Math.floor(playerZ / scale) - 64;
+    for (int z = scaledStartZ; z < scaledStartZ + 128; z++) {
+      int alignedZ = ((z + 64) >> 7) << 7;
+      int outputRow = (127 - (z & 127)) * 128;
+      int inputRow = (127 - ((z + 64) & 127)) * 128;
+      // Spans end where either the tile or the wrapped output column wraps around
+      for (int x = scaledStartX; x < scaledStartX + 128; ) {
+        int length = Math.min(scaledStartX + 128 - x, Math.min(128 - (x & 127), 128 - ((x + 64) & 127)));
+        int last = x + length - 1;
+        TileView tile = cache.get(world, scale, ((x + 64) >> 7) << 7, alignedZ);
+        tile.copyTo(inputRow + 127 - ((last + 64) & 127), layer, outputRow + 127 - (last & 127), length);
+        x += length;
+      }
+    }
+
+    trackViewedTiles(cache, scale, scaledStartX, scaledStartZ);
+  }
+
+  private void trackViewedTiles(WorldMapCache<?> cache, int scale, int scaledStartX, int scaledStartZ) {
+    World world = holder.getWorld();
+    LongArrayList usedChunks = new LongArrayList();
+    int alignedStartX = ((scaledStartX + 64) >> 7) << 7;
+    int alignedStartZ = ((scaledStartZ + 64) >> 7) << 7;
+    int alignedEndX = ((scaledStartX + 127 + 64) >> 7) << 7;
+    int alignedEndZ = ((scaledStartZ + 127 + 64) >> 7) << 7;
+    for (int x = alignedStartX; x <= alignedEndX; x += 128) {
+      for (int z = alignedStartZ; z <= alignedEndZ; z += 128) {
+        usedChunks.add(WorldMapCache.getKey(world, scale, x, z));
+      }
+    }
+    cache.setViewerChunks(holder.getUniqueId(), usedChunks);
+  }
+
   public void updateSecondaryLayers(MinimapProvider provider) {
     for (SecondaryMinimapLayer secondary : secondaryLayers.values()) {
       if (secondary.getWorld() != null && !secondary.getWorld().equals(holder.getWorld())) {
         continue;
       }
 
-      byte[] secondaryLayer = new byte[128 * 128];
-      if (secondary.getRenderer() != null) {
-        secondary.getRenderer().render(this, secondary, secondaryLayer);
+      // Markers move between the table and their own layer when their icon, the config or the room in the table changes
+      boolean combined = markerTable != null && markerTable.contains(secondary);
+      if (combined != fitsMarkerTable(secondary)) {
+        despawnSecondaryLayer(provider, secondary);
+        secondary.getSentFrame().reset();
+        spawnSecondaryLayer(provider, secondary);
+        combined = !combined;
+      }
+
+      if (combined) {
+        continue;
+      }
+
+      SecondaryMinimapLayerRenderer renderer = secondary.getRenderer();
+      if (renderer != null && renderer.isPositionIndependent() &&
+          secondary.getSentFrame().sendHeader(provider.packetSender(), holder, secondary.getBaseLayer(),
+              header -> SecondaryMapEncoder.encodeSecondaryLayer(this, secondary, header))) {
+        continue;
+      }
+
+      byte[] secondaryLayer = secondaryFrame;
+      Arrays.fill(secondaryLayer, (byte) 0);
+      if (renderer != null) {
+        renderer.render(this, secondary, secondaryLayer);
       } else if (secondary.getBaseLayer().renderer() != null) {
         secondary.getBaseLayer().renderer().render(this, secondary.getBaseLayer(), secondaryLayer);
       }
       SecondaryMapEncoder.encodeSecondaryLayer(this, secondary, secondaryLayer);
-      provider.packetSender().updateLayer(holder, secondary.getBaseLayer(), 0, 0, 128, 128, secondaryLayer);
+      if (renderer instanceof MinimapIconRenderer iconRenderer) {
+        secondary.getSentFrame().send(provider.packetSender(), holder, secondary.getBaseLayer(), secondaryLayer,
+            iconRenderer.encodedBody(provider.packetSender(), secondaryLayer));
+      } else {
+        secondary.getSentFrame().send(provider.packetSender(), holder, secondary.getBaseLayer(), secondaryLayer);
+      }
+    }
+
+    if (markerTable != null) {
+      markerTable.update(this, provider);
     }
   }
 
+  // Spawns the layer of a marker, or adds it to the marker table if it can be drawn there.
+  public void spawnSecondaryLayer(MinimapProvider provider, SecondaryMinimapLayer layer) {
+    if (!fitsMarkerTable(layer)) {
+      provider.packetSender().spawnLayer(holder, layer.getBaseLayer());
+      return;
+    }
+
+    if (markerTable == null) {
+      markerTable = new MarkerTable(provider.clientsideMinimapFactory().createMinimapLayer(holder.getWorld(), null));
+      provider.packetSender().spawnLayer(holder, markerTable.getBaseLayer());
+    }
+    markerTable.add(layer);
+  }
+
+  public void despawnSecondaryLayer(MinimapProvider provider, SecondaryMinimapLayer layer) {
+    if (markerTable == null || !markerTable.remove(layer)) {
+      provider.packetSender().despawnLayer(holder, layer.getBaseLayer());
+    }
+  }
+
+  // Whether the marker table draws the layer, or would as soon as it is spawned
+  public boolean fitsMarkerTable(SecondaryMinimapLayer layer) {
+    return MarkerTable.accepts(layer) && (markerTable == null || markerTable.contains(layer) || !markerTable.isFull());
+  }
+
+  public boolean isCombined(SecondaryMinimapLayer layer) {
+    return markerTable != null && markerTable.contains(layer);
+  }
+
+  public MarkerTable markerTable() {
+    return markerTable;
+  }
+
   public void update(MinimapProvider provider) {
+    invalidatePixels();
     update(provider, holder.getX(), holder.getZ(), false);
   }
 
+  // Makes the next update render the primary layer again instead of only updating its header.
+  public void invalidatePixels() {
+    renderedScale = 0;
+  }
+
   public void respawn(MinimapProvider provider) {
     MinimapPacketSender packetSender = provider.packetSender();
     packetSender.despawnMinimap(this);
     packetSender.spawnMinimap(this);
+    // The client may have dropped the map contents, e.g. after changing worlds
+    sentFrame.reset();
+    secondaryLayers.values().forEach(secondary -> secondary.getSentFrame().reset());
+    if (markerTable != null) {
+      markerTable.getSentFrame().reset();
+    }
     update(provider, holder.getX(), holder.getZ(), true);
   }
 
   public void resetDeathPoint(MinimapProvider provider) {
     SecondaryMinimapLayer currentDeathPoint = secondaryLayers.remove("death_point");
     if (currentDeathPoint != null) {
-      provider.packetSender().despawnLayer(holder, currentDeathPoint.getBaseLayer());
+      despawnSecondaryLayer(provider, currentDeathPoint);
     }
   }
 
   public void setDeathPoint(MinimapProvider provider, Location deathLocation) {
     SecondaryMinimapLayer currentDeathPoint = secondaryLayers.get("death_point");
     if (currentDeathPoint != null) {
-      provider.packetSender().despawnLayer(holder, currentDeathPoint.getBaseLayer());
+      despawnSecondaryLayer(provider, currentDeathPoint);
     }
 
     MinimapIcon deathIcon = provider.iconProvider().getIcon("death");
@@ -211,7 +358,7 @@ public final class Minimap {
       secondaryLayers.put("death_point", iconLayer);
 
       if (iconLayer.getWorld().equals(holder.getWorld())) {
-        provider.packetSender().spawnLayer(holder, iconBaseLayer);
+        spawnSecondaryLayer(provider, iconLayer);
       }
     }
   }
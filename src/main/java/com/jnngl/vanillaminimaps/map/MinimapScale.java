@@ -24,7 +24,10 @@ public final class MinimapScale {
   private MinimapScale() {
   }
 
+  // Tile keys have room for 16 scales
+  public static final int MAX_SCALE = 16;
+
   public static int get() {
-    return Math.max(1, Config.instance().minimapScale);
+    return Math.clamp(Config.instance().minimapScale, 1, MAX_SCALE);
   }
 }
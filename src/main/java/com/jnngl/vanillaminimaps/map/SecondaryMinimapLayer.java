@@ -36,5 +36,11 @@ public class SecondaryMinimapLayer {
   private int positionX;
   private int positionZ;
   private float depth;
+  private final SentMapFrame sentFrame = new SentMapFrame();
 
+  public void setRenderer(SecondaryMinimapLayerRenderer renderer) {
+    this.renderer = renderer;
+    // Position-independent pixels are only sent once, so make the next update send the new ones
+    sentFrame.reset();
+  }
 }
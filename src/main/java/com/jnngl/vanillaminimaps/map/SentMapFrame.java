@@ -0,0 +1,147 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map;
+
+import com.jnngl.vanillaminimaps.clientside.EncodedMapPatch;
+import com.jnngl.vanillaminimaps.clientside.MinimapPacketSender;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// The last frame sent to the client for a map. Updates only send the parts that changed since: consecutive
+// changed rows are grouped into one rectangle as long as that is cheaper than starting another packet.
+public final class SentMapFrame {
+
+  private static final int SIZE = 128;
+  // Rows holding the layer metadata, see PrimaryMapEncoder and SecondaryMapEncoder
+  public static final int HEADER_ROWS = 3;
+  // Rough size of a map packet without its colors
+  public static final int PATCH_OVERHEAD = 16;
+
+  private byte[] sent;
+  private final byte[] header = new byte[HEADER_ROWS * SIZE];
+
+  public void send(MinimapPacketSender packetSender, Player viewer, MinimapLayer layer, byte[] frame) {
+    if (sent == null) {
+      sent = frame.clone();
+      // Frame buffers are reused while the packet is only encoded later
+      packetSender.updateLayer(viewer, layer, 0, 0, SIZE, SIZE, frame.clone());
+      return;
+    }
+
+    sendRows(packetSender, viewer, layer, frame, SIZE);
+  }
+
+  // Same as above, but the rows below the header are sent from an already encoded patch shared between layers.
+  // The patch has to hold exactly those rows of the frame.
+  public void send(MinimapPacketSender packetSender, Player viewer, MinimapLayer layer, byte[] frame, EncodedMapPatch body) {
+    if (sent != null) {
+      sendRows(packetSender, viewer, layer, frame, SIZE);
+      return;
+    }
+
+    sent = frame.clone();
+    packetSender.updateLayer(viewer, layer, body);
+    packetSender.updateLayer(viewer, layer, 0, 0, SIZE, HEADER_ROWS, Arrays.copyOf(frame, HEADER_ROWS * SIZE));
+  }
+
+  public static EncodedMapPatch encodeBody(MinimapPacketSender packetSender, byte[] frame) {
+    return packetSender.encodePatch(0, HEADER_ROWS, SIZE, SIZE - HEADER_ROWS,
+        Arrays.copyOfRange(frame, HEADER_ROWS * SIZE, SIZE * SIZE));
+  }
+
+  // Re-encodes the header rows of the last sent frame and sends what changed in them, keeping the pixels below.
+  // Returns false if nothing was sent yet, so the whole frame has to be rendered.
+  public boolean sendHeader(MinimapPacketSender packetSender, Player viewer, MinimapLayer layer, Consumer<byte[]> encoder) {
+    if (sent == null) {
+      return false;
+    }
+
+    System.arraycopy(sent, 0, header, 0, header.length);
+    encoder.accept(header);
+    sendRows(packetSender, viewer, layer, header, HEADER_ROWS);
+    return true;
+  }
+
+  public boolean isSent() {
+    return sent != null;
+  }
+
+  private void sendRows(MinimapPacketSender packetSender, Player viewer, MinimapLayer layer, byte[] frame, int rows) {
+    int top = -1;
+    int bottom = 0;
+    int first = 0;
+    int last = 0;
+    for (int row = 0; row < rows; row++) {
+      int start = row * SIZE;
+      int rowFirst = Arrays.mismatch(frame, start, start + SIZE, sent, start, start + SIZE);
+      if (rowFirst < 0) {
+        continue;
+      }
+
+      int rowLast = SIZE - 1;
+      while (frame[start + rowLast] == sent[start + rowLast]) {
+        rowLast--;
+      }
+      System.arraycopy(frame, start + rowFirst, sent, start + rowFirst, rowLast + 1 - rowFirst);
+
+      if (top >= 0) {
+        int mergedFirst = Math.min(first, rowFirst);
+        int mergedLast = Math.max(last, rowLast);
+        int merged = (mergedLast + 1 - mergedFirst) * (row + 1 - top);
+        int separate = (last + 1 - first) * (bottom + 1 - top) + (rowLast + 1 - rowFirst) + PATCH_OVERHEAD;
+        if (merged <= separate) {
+          bottom = row;
+          first = mergedFirst;
+          last = mergedLast;
+          continue;
+        }
+
+        sendRectangle(packetSender, viewer, layer, frame, first, top, last, bottom);
+      }
+
+      top = row;
+      bottom = row;
+      first = rowFirst;
+      last = rowLast;
+    }
+
+    if (top >= 0) {
+      sendRectangle(packetSender, viewer, layer, frame, first, top, last, bottom);
+    }
+  }
+
+  // Forgets the frame, e.g. when the client may have lost the map contents.
+  public void reset() {
+    sent = null;
+  }
+
+  // Sends columns first to last of rows top to bottom of the frame. Returns the approximate number of bytes sent.
+  public static int sendRectangle(MinimapPacketSender packetSender, Player viewer, MinimapLayer layer, byte[] frame,
+                                  int first, int top, int last, int bottom) {
+    int width = last + 1 - first;
+    int height = bottom + 1 - top;
+    byte[] patch = new byte[width * height];
+    for (int row = 0; row < height; row++) {
+      System.arraycopy(frame, (top + row) * SIZE + first, patch, row * width, width);
+    }
+    packetSender.updateLayer(viewer, layer, first, top, width, height, patch);
+    return patch.length + PATCH_OVERHEAD;
+  }
+}
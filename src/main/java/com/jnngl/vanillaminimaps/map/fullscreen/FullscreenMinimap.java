@@ -18,6 +18,8 @@
 package com.jnngl.vanillaminimaps.map.fullscreen;
 
 import com.jnngl.vanillaminimaps.VanillaMinimaps;
+import com.jnngl.vanillaminimaps.clientside.EncodedMapPatch;
+import com.jnngl.vanillaminimaps.clientside.MinimapPacketSender;
 import com.jnngl.vanillaminimaps.config.Config;
 import com.jnngl.vanillaminimaps.map.Minimap;
 import com.jnngl.vanillaminimaps.map.MinimapLayer;
@@ -51,6 +53,9 @@ public class FullscreenMinimap {
     Arrays.fill(LOADING_MAP, (byte) 119);
   }
 
+  // Every segment of every fullscreen map starts with the same contents, so they are only encoded once
+  private static EncodedMapPatch encodedLoadingMap;
+
   private final Minimap baseMinimap;
   private final Player holder;
   private final List<FullscreenMinimapLayer> primaryLayer;
@@ -116,6 +121,14 @@ public class FullscreenMinimap {
     return fadeIn(provider, x -> 1.0 - easing.apply(x), duration);
   }
 
+  private static EncodedMapPatch encodedLoadingMap(MinimapPacketSender packetSender) {
+    if (encodedLoadingMap == null) {
+      encodedLoadingMap = packetSender.encodePatch(0, 0, 128, 128, LOADING_MAP);
+    }
+
+    return encodedLoadingMap;
+  }
+
   public void spawn(MinimapProvider provider) {
     PriorityQueue<Map.Entry<FullscreenMinimapLayer, Integer>> chunkQueue = new PriorityQueue<>(Map.Entry.comparingByValue());
 
@@ -124,17 +137,20 @@ public class FullscreenMinimap {
     World world = holder.getWorld();
     Location holderPosition = holder.getLocation();
     boolean forceBright = holderPosition.getBlock().getLightFromSky() < 15;
+    EncodedMapPatch loadingMap = encodedLoadingMap(provider.packetSender());
+    List<MinimapLayer> segmentLayers = new ArrayList<>(primaryLayer.size());
     primaryLayer.forEach(layer -> {
-      provider.packetSender().updateLayer(holder, layer.base(), 0, 0, 128, 128, LOADING_MAP);
+      provider.packetSender().updateLayer(holder, layer.base(), loadingMap);
 
       byte[] meta = new byte[128];
       FullscreenMapEncoder.encodePrimaryLayer(FullscreenMinimap.this, layer, meta);
       provider.packetSender().updateLayer(holder, layer.base(), 0, 0, 128, 1, meta);
 
-      provider.packetSender().spawnLayer(holder, layer.base());
+      segmentLayers.add(layer.base());
       Location segmentPosition = new Location(world, (layer.chunkX() << 7) + 64, holderPosition.getY(), (layer.chunkZ() << 7) + 64);
       chunkQueue.offer(new AbstractMap.SimpleImmutableEntry<>(layer, (int) segmentPosition.distanceSquared(holderPosition)));
     });
+    provider.packetSender().spawnLayers(holder, segmentLayers);
 
     fadeIn(provider, FullscreenMinimap::easeOutCubic, 20);
 
@@ -206,8 +222,10 @@ public class FullscreenMinimap {
       renderTask = null;
     }
     fadeOut(provider, FullscreenMinimap::easeOutCubic, 10).whenComplete((v, t) -> {
-      provider.packetSender().despawnLayer(holder, backgroundLayer);
-      primaryLayer.forEach(layer -> provider.packetSender().despawnLayer(holder, layer.base()));
+      List<MinimapLayer> layers = new ArrayList<>(primaryLayer.size() + 1);
+      layers.add(backgroundLayer);
+      primaryLayer.forEach(layer -> layers.add(layer.base()));
+      provider.packetSender().despawnLayers(holder, layers);
       if (callback != null) {
         callback.accept(null);
       }
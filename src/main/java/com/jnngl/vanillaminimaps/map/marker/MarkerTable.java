@@ -0,0 +1,176 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.marker;
+
+import com.jnngl.vanillaminimaps.config.Config;
+import com.jnngl.vanillaminimaps.map.Minimap;
+import com.jnngl.vanillaminimaps.map.MinimapLayer;
+import com.jnngl.vanillaminimaps.map.MinimapProvider;
+import com.jnngl.vanillaminimaps.map.SecondaryMinimapLayer;
+import com.jnngl.vanillaminimaps.map.SentMapFrame;
+import com.jnngl.vanillaminimaps.map.icon.MinimapIcon;
+import com.jnngl.vanillaminimaps.map.renderer.MinimapIconRenderer;
+import com.jnngl.vanillaminimaps.map.renderer.encoder.SecondaryMapEncoder;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ReferenceSet;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+// Draws many icon markers with a single map. The header lists the marker positions, the icons are kept in an atlas
+// of 16x16 slots below it, and the shader draws every listed icon upright at its position.
+public final class MarkerTable {
+
+  public static final int CAPACITY = 56;
+  public static final int MAX_ICON_SIZE = 14;
+  private static final int SLOT_SIZE = 16;
+  private static final int ATLAS_ROW = 16;
+
+  @Getter
+  private final MinimapLayer baseLayer;
+  @Getter
+  private final SentMapFrame sentFrame = new SentMapFrame();
+  private final ReferenceSet<SecondaryMinimapLayer> layers = new ReferenceOpenHashSet<>();
+  private final byte[] frame = new byte[128 * 128];
+  private final MinimapIcon[] slotIcons = new MinimapIcon[CAPACITY];
+  private final boolean[] usedSlots = new boolean[CAPACITY];
+  private final SecondaryMinimapLayer[] entries = new SecondaryMinimapLayer[CAPACITY];
+  private final int[] positions = new int[CAPACITY];
+  private final int[] slots = new int[CAPACITY];
+  private final boolean[] keepOnEdge = new boolean[CAPACITY];
+
+  public MarkerTable(MinimapLayer baseLayer) {
+    this.baseLayer = baseLayer;
+  }
+
+  public static boolean accepts(SecondaryMinimapLayer layer) {
+    return Config.instance().markers.combineLayers
+        && layer.getRenderer() instanceof MinimapIconRenderer renderer
+        && renderer.icon().width() <= MAX_ICON_SIZE
+        && renderer.icon().height() <= MAX_ICON_SIZE;
+  }
+
+  // Markers past the capacity keep their own layer, so none of them disappear
+  public boolean isFull() {
+    return layers.size() >= CAPACITY;
+  }
+
+  public boolean contains(SecondaryMinimapLayer layer) {
+    return layers.contains(layer);
+  }
+
+  public void add(SecondaryMinimapLayer layer) {
+    layers.add(layer);
+  }
+
+  public boolean remove(SecondaryMinimapLayer layer) {
+    return layers.remove(layer);
+  }
+
+  public void update(Minimap minimap, MinimapProvider provider) {
+    int count = 0;
+    float depth = 0.0F;
+    for (SecondaryMinimapLayer layer : minimap.secondaryLayers().values()) {
+      if (count == CAPACITY) {
+        break;
+      }
+
+      if (!layers.contains(layer) || (layer.getWorld() != null && !layer.getWorld().equals(minimap.holder().getWorld()))) {
+        continue;
+      }
+
+      int position = SecondaryMapEncoder.mapPosition(minimap, layer);
+      if (position >= 0) {
+        entries[count] = layer;
+        positions[count] = position;
+        keepOnEdge[count] = layer.isKeepOnEdge();
+        depth = Math.max(depth, layer.getDepth());
+        count++;
+      }
+    }
+
+    sortByDepth(count);
+    assignSlots(count);
+    Arrays.fill(frame, 0, ATLAS_ROW * 128, (byte) 0);
+    SecondaryMapEncoder.encodeMarkerTable(minimap, depth, count, positions, slots, keepOnEdge, frame);
+    Arrays.fill(entries, 0, count, null);
+    sentFrame.send(provider.packetSender(), minimap.holder(), baseLayer, frame);
+  }
+
+  // The shader draws later entries on top
+  private void sortByDepth(int count) {
+    for (int i = 1; i < count; i++) {
+      SecondaryMinimapLayer layer = entries[i];
+      int position = positions[i];
+      boolean keep = keepOnEdge[i];
+      int j = i - 1;
+      while (j >= 0 && entries[j].getDepth() > layer.getDepth()) {
+        entries[j + 1] = entries[j];
+        positions[j + 1] = positions[j];
+        keepOnEdge[j + 1] = keepOnEdge[j];
+        j--;
+      }
+      entries[j + 1] = layer;
+      positions[j + 1] = position;
+      keepOnEdge[j + 1] = keep;
+    }
+  }
+
+  // Icons keep their slot while they are shown, so the atlas is only sent again when new icons appear
+  private void assignSlots(int count) {
+    Arrays.fill(usedSlots, false);
+    for (int i = 0; i < count; i++) {
+      MinimapIcon icon = ((MinimapIconRenderer) entries[i].getRenderer()).icon();
+      slots[i] = -1;
+      for (int slot = 0; slot < CAPACITY; slot++) {
+        if (slotIcons[slot] == icon) {
+          slots[i] = slot;
+          usedSlots[slot] = true;
+          break;
+        }
+      }
+    }
+
+    for (int i = 0; i < count; i++) {
+      if (slots[i] >= 0) {
+        continue;
+      }
+
+      int slot = 0;
+      while (usedSlots[slot]) {
+        slot++;
+      }
+
+      MinimapIconRenderer renderer = (MinimapIconRenderer) entries[i].getRenderer();
+      int row = ATLAS_ROW + (slot >> 3) * SLOT_SIZE;
+      int column = (slot & 7) * SLOT_SIZE;
+      // Icons never reach the first and last texel of a slot, which keeps the map corners intact
+      for (int y = row + 1; y < row + SLOT_SIZE - 1; y++) {
+        Arrays.fill(frame, y * 128 + column + 1, y * 128 + column + SLOT_SIZE - 1, (byte) 0);
+      }
+      renderer.renderAt(frame, row + SLOT_SIZE / 2, column + SLOT_SIZE / 2);
+      slotIcons[slot] = renderer.icon();
+      usedSlots[slot] = true;
+      for (int j = i; j < count; j++) {
+        if (slots[j] < 0 && ((MinimapIconRenderer) entries[j].getRenderer()).icon() == renderer.icon()) {
+          slots[j] = slot;
+        }
+      }
+    }
+  }
+}
@@ -17,54 +17,52 @@
 
 package com.jnngl.vanillaminimaps.map.renderer;
 
+import com.jnngl.vanillaminimaps.clientside.EncodedMapPatch;
+import com.jnngl.vanillaminimaps.clientside.MinimapPacketSender;
 import com.jnngl.vanillaminimaps.map.Minimap;
-import com.jnngl.vanillaminimaps.map.MinimapScale;
 import com.jnngl.vanillaminimaps.map.SecondaryMinimapLayer;
+import com.jnngl.vanillaminimaps.map.SentMapFrame;
 import com.jnngl.vanillaminimaps.map.fullscreen.FullscreenMinimap;
 import com.jnngl.vanillaminimaps.map.fullscreen.FullscreenSecondaryMinimapLayer;
 import com.jnngl.vanillaminimaps.map.icon.MinimapIcon;
 import org.apache.commons.lang3.function.TriFunction;
-import org.bukkit.Location;
-import org.bukkit.util.Vector;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.function.BiFunction;
 
 public record MinimapIconRenderer(MinimapIcon icon, @Nullable MinimapIcon fullscreenIcon) implements SecondaryMinimapLayerRenderer {
 
+  private static final Map<MinimapIcon, EncodedMapPatch> ENCODED_BODIES = Collections.synchronizedMap(new WeakHashMap<>());
+
   public MinimapIconRenderer(MinimapIcon icon) {
     this(icon, icon);
   }
 
   @Override
   public void render(Minimap minimap, SecondaryMinimapLayer layer, byte[] data) {
-    Location location = minimap.holder().getLocation();
-    double trackedX = layer.getPositionX();
-    double trackedZ = layer.getPositionZ();
-    int scale = MinimapScale.get();
-    if (layer.isTrackLocation()) {
-      int centerBlockX = ((int) Math.floor(location.getX() / scale)) * scale;
-      int centerBlockZ = ((int) Math.floor(location.getZ() / scale)) * scale;
-      trackedZ = (centerBlockX - layer.getPositionX()) / (double) scale;
-      trackedX = (centerBlockZ - layer.getPositionZ()) / (double) scale;
-      if (layer.isKeepOnEdge()) {
-        Vector direction = new Vector(trackedX, 0, trackedZ);
-        double edgeRadius = MinimapBorder.clampRadius(icon);
-        if (direction.lengthSquared() > edgeRadius * edgeRadius) {
-          direction.normalize().multiply(edgeRadius);
-          trackedX = direction.getX();
-          trackedZ = direction.getZ();
-        }
-      }
-      trackedX += 64;
-      trackedZ += 64;
-    }
+    renderAt(data, 64, 64);
+  }
 
-    renderIcon(icon, data, (int) Math.round(trackedX), (int) Math.round(trackedZ),
+  // Draws the icon centered on the given map texel, e.g. into a marker table atlas slot.
+  public void renderAt(byte[] data, int mapX, int mapZ) {
+    renderIcon(icon, data, mapX, mapZ,
         (x, y) -> x * 128 + y,
         (icon, x, y) -> y * icon.width() + icon.width() - 1 - x);
   }
 
+  @Override
+  public boolean isPositionIndependent() {
+    return true;
+  }
+
+  // Layers of the same icon only differ in their header, so the rows below it are encoded once for all of them.
+  public EncodedMapPatch encodedBody(MinimapPacketSender packetSender, byte[] frame) {
+    return ENCODED_BODIES.computeIfAbsent(icon, key -> SentMapFrame.encodeBody(packetSender, frame));
+  }
+
   @Override
   public void renderFullscreen(FullscreenMinimap minimap, FullscreenSecondaryMinimapLayer layer, int chunkX, int chunkZ, byte[] data) {
     if (fullscreenIcon == null) {
@@ -26,5 +26,11 @@ public interface SecondaryMinimapLayerRenderer {
 
   void render(Minimap minimap, SecondaryMinimapLayer layer, byte[] data);
 
+  // Whether render draws the same pixels wherever the layer is. They are then drawn centered on the map and uploaded
+  // once, the shader moves them to the tracked position encoded in the header.
+  default boolean isPositionIndependent() {
+    return false;
+  }
+
   void renderFullscreen(FullscreenMinimap minimap, FullscreenSecondaryMinimapLayer layer, int chunkX, int chunkZ, byte[] data);
 }
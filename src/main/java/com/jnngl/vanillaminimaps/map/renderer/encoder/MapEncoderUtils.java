@@ -39,7 +39,10 @@ public class MapEncoderUtils {
   public static void markCorners(byte[] image) {
     image[0] = (byte) 158;
     image[127] = (byte) 158;
-    image[128 * 127] = (byte) 158;
-    image[128 * 127 + 127] = (byte) 158;
+    // Header-only updates encode into the first rows, the bottom corners were sent with the pixels
+    if (image.length == 128 * 128) {
+      image[128 * 127] = (byte) 158;
+      image[128 * 127 + 127] = (byte) 158;
+    }
   }
 }
@@ -41,6 +41,16 @@ public class PrimaryMapEncoder {
     MapEncoderUtils.encodeFixedPoint(data, 9, 0, fractionalZ);
     data[17] = right ? (byte) 4 : (byte) 0;
     data[18] = Config.instance().minimapShape == Config.MinimapShape.SQUARE ? (byte) 4 : (byte) 0;
+    // Cleared for centered maps, encodeWorldAlignment sets it afterwards
+    data[19] = (byte) 0;
     data[128] = (byte) 0;
   }
+
+  // Marks a world-aligned primary layer and encodes the scaled position of the player modulo 128.
+  // Has to be called after encodePrimaryLayer.
+  public static void encodeWorldAlignment(int scaledX, int scaledZ, byte[] data) {
+    data[19] = (byte) 4;
+    MapEncoderUtils.encodeUnsigned(data, 20, 0, scaledX & 127);
+    MapEncoderUtils.encodeUnsigned(data, 28, 0, scaledZ & 127);
+  }
 }
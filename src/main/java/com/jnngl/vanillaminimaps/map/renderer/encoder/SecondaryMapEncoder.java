@@ -31,6 +31,60 @@ public class SecondaryMapEncoder {
 
   public static void encodeSecondaryLayer(Minimap minimap, SecondaryMinimapLayer layer, byte[] data) {
     Location location = minimap.holder().getLocation();
+    PrimaryMapEncoder.encodePrimaryLayer(minimap.screenPosition() == MinimapScreenPosition.RIGHT, location.getX(), location.getZ(), data);
+    int position = mapPosition(minimap, layer);
+    if (position >= 0) {
+      int mapX = position >> 8;
+      int mapZ = position & 0xFF;
+      MapEncoderUtils.encodeFixedPoint(data, 1, 1, layer.getDepth());
+      MapEncoderUtils.encodeFixedPoint(data, 9, 1, mapX / 128.0);
+      data[128 * 2] = (byte) 4;
+      MapEncoderUtils.encodeFixedPoint(data, 1, 2, mapZ / 128.0);
+      data[128 * 2 + 9] = layer.isKeepOnEdge() ? (byte) 4 : (byte) 0;
+      if (layer.getRenderer() != null && layer.getRenderer().isPositionIndependent()) {
+        data[128 * 2 + 10] = (byte) 4;
+        MapEncoderUtils.encodeUnsigned(data, 11, 2, mapX);
+        MapEncoderUtils.encodeUnsigned(data, 19, 2, mapZ);
+      } else {
+        data[128 * 2 + 10] = (byte) 0;
+      }
+    } else {
+      data[128 * 2] = (byte) 0;
+    }
+
+    data[128] = (byte) 4;
+    data[128 + 17] = (byte) 0;
+  }
+
+  // 0  - marker table header, rows 0 and 1 as for single markers
+  // 17 - flag          - marker table
+  // 18 - unsigned byte - number of entries
+  // Entries start at row 2, four per row and 32 texels each:
+  // 0  - unsigned byte - map x
+  // 8  - unsigned byte - map z
+  // 16 - unsigned byte - atlas slot
+  // 24 - flag          - keep on edge
+  public static void encodeMarkerTable(Minimap minimap, float depth, int count, int[] positions, int[] slots,
+                                       boolean[] keepOnEdge, byte[] data) {
+    Location location = minimap.holder().getLocation();
+    PrimaryMapEncoder.encodePrimaryLayer(minimap.screenPosition() == MinimapScreenPosition.RIGHT, location.getX(), location.getZ(), data);
+    data[128] = (byte) 4;
+    MapEncoderUtils.encodeFixedPoint(data, 1, 1, depth);
+    data[128 + 17] = (byte) 4;
+    MapEncoderUtils.encodeUnsigned(data, 18, 1, count);
+    for (int i = 0; i < count; i++) {
+      int x = (i & 3) * 32;
+      int y = 2 + (i >> 2);
+      MapEncoderUtils.encodeUnsigned(data, x, y, positions[i] >> 8);
+      MapEncoderUtils.encodeUnsigned(data, x + 8, y, positions[i] & 0xFF);
+      MapEncoderUtils.encodeUnsigned(data, x + 16, y, slots[i]);
+      data[y * 128 + x + 24] = keepOnEdge[i] ? (byte) 4 : (byte) 0;
+    }
+  }
+
+  // Returns mapX << 8 | mapZ of the marker, or -1 if it is not shown on the map.
+  public static int mapPosition(Minimap minimap, SecondaryMinimapLayer layer) {
+    Location location = minimap.holder().getLocation();
 
     double trackedX = layer.getPositionX();
     double trackedZ = layer.getPositionZ();
@@ -54,23 +108,15 @@ public class SecondaryMapEncoder {
       trackedZ += 64;
     }
 
-    PrimaryMapEncoder.encodePrimaryLayer(minimap.screenPosition() == MinimapScreenPosition.RIGHT, location.getX(), location.getZ(), data);
     Location position = new Location(location.getWorld(), layer.getPositionX(), location.getY(), layer.getPositionZ());
     double maxDistance = 64.0 * scale;
     int mapX = (int) Math.round(trackedX);
     int mapZ = (int) Math.round(trackedZ);
     boolean tracked = !layer.isTrackLocation() || layer.isKeepOnEdge() || location.distanceSquared(position) < maxDistance * maxDistance;
     if (tracked && mapX >= 0 && mapX < 128 && mapZ >= 0 && mapZ < 128) {
-      MapEncoderUtils.encodeFixedPoint(data, 1, 1, layer.getDepth());
-      MapEncoderUtils.encodeFixedPoint(data, 9, 1, mapX / 128.0);
-      data[128 * 2] = (byte) 4;
-      MapEncoderUtils.encodeFixedPoint(data, 1, 2, mapZ / 128.0);
-      data[128 * 2 + 9] = layer.isKeepOnEdge() ? (byte) 4 : (byte) 0;
-    } else {
-      data[128 * 2] = (byte) 0;
+      return mapX << 8 | mapZ;
     }
-
-    data[128] = (byte) 4;
+    return -1;
   }
 
   private static MinimapIcon resolveIcon(SecondaryMinimapLayer layer) {
@@ -0,0 +1,93 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world;
+
+import com.jnngl.vanillaminimaps.config.BlockColorTable;
+import net.minecraft.world.level.material.MapColor;
+
+public final class ColumnSample {
+
+  // 0  - 32 bits - surface block state id
+  // 32 - 16 bits - fluid depth, 0 when the surface is not a fluid
+  // 48 - 16 bits - surface height
+  private static final int DEPTH_MASK = 0xFFFF;
+
+  private ColumnSample() {
+  }
+
+  public static long pack(int stateId, int height, int fluidDepth) {
+    return (long) height << 48 | (long) (Math.min(fluidDepth, DEPTH_MASK) & DEPTH_MASK) << 32 | (stateId & 0xFFFFFFFFL);
+  }
+
+  public static int stateId(long sample) {
+    return (int) sample;
+  }
+
+  public static int fluidDepth(long sample) {
+    return (int) (sample >>> 32) & DEPTH_MASK;
+  }
+
+  public static int height(long sample) {
+    return (int) (sample >> 48);
+  }
+
+  public static int colorId(BlockColorTable table, long sample) {
+    int entry = table.entry(stateId(sample));
+    return fluidDepth(sample) > 0 ? BlockColorTable.fluidColorId(entry) : BlockColorTable.colorId(entry);
+  }
+
+  // Integer form of the vanilla MapItem brightness formula. The thresholds reproduce the rounding of the
+  // original double arithmetic exactly, so the output stays byte-identical to it.
+  public static int brightness(int colorId, int fluidDepth, int height, int northHeight, int x, int z) {
+    int parity = x + z & 1;
+    if (colorId == MapColor.WATER.id) {
+      if (fluidDepth + 2 * parity < 5) {
+        return MapColor.Brightness.HIGH.id;
+      } else if (fluidDepth + 3 * parity > 9) {
+        return MapColor.Brightness.LOW.id;
+      } else {
+        return MapColor.Brightness.NORMAL.id;
+      }
+    }
+
+    int delta = height - northHeight;
+    if (delta > 0) {
+      return MapColor.Brightness.HIGH.id;
+    } else if (delta < 0) {
+      return MapColor.Brightness.LOW.id;
+    } else {
+      return MapColor.Brightness.NORMAL.id;
+    }
+  }
+
+  public static byte shade(BlockColorTable table, long sample, int northHeight, int x, int z) {
+    int colorId = colorId(table, sample);
+    return (byte) (colorId << 2 | brightness(colorId, fluidDepth(sample), height(sample), northHeight, x, z));
+  }
+
+  // Re-shades an already shaded pixel after the height of its north neighbour changed.
+  // Water brightness only depends on the fluid depth, so it is left as is.
+  public static byte reshade(byte pixel, int height, int northHeight) {
+    int colorId = (pixel & 0xFF) >> 2;
+    if (colorId == MapColor.WATER.id) {
+      return pixel;
+    }
+
+    return (byte) (colorId << 2 | brightness(colorId, 0, height, northHeight, 0, 0));
+  }
+}
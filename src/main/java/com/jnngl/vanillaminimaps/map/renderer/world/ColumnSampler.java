@@ -0,0 +1,93 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world;
+
+import com.jnngl.vanillaminimaps.config.BlockColorTable;
+import com.jnngl.vanillaminimaps.config.BlockConfig;
+import com.jnngl.vanillaminimaps.map.renderer.world.chunk.ChunkColumns;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+
+// Samples map columns into packed ColumnSample values.
+public final class ColumnSampler {
+
+  private static final int BEDROCK = Block.getId(Blocks.BEDROCK.defaultBlockState());
+  private static final int DIRT = Block.getId(Blocks.DIRT.defaultBlockState());
+  private static final int STONE = Block.getId(Blocks.STONE.defaultBlockState());
+
+  private final BlockColorTable colorTable;
+  private final int minY;
+  private final boolean hasCeiling;
+
+  public ColumnSampler(int minY, boolean hasCeiling) {
+    this.colorTable = BlockConfig.instance().getColorTable();
+    this.minY = minY;
+    this.hasCeiling = hasCeiling;
+  }
+
+  public BlockColorTable colorTable() {
+    return colorTable;
+  }
+
+  public long[] summarize(ChunkColumns chunk, int chunkX, int chunkZ) {
+    long[] summary = new long[16 * 16];
+    int baseX = chunkX << 4;
+    int baseZ = chunkZ << 4;
+    for (int z = 0; z < 16; z++) {
+      for (int x = 0; x < 16; x++) {
+        summary[z << 4 | x] = sample(chunk, baseX + x, baseZ + z);
+      }
+    }
+
+    return summary;
+  }
+
+  public long sample(ChunkColumns chunk, int worldX, int worldZ) {
+    if (hasCeiling) {
+      int i3 = worldX + worldZ * 231871;
+      i3 = i3 * i3 * 31287121 + i3 * 11;
+      return ColumnSample.pack((i3 >> 20 & 1) == 0 ? DIRT : STONE, 100, 0);
+    }
+
+    int k3 = chunk.getSurfaceHeight(worldX, worldZ) + 1;
+    if (k3 <= minY + 1) {
+      return ColumnSample.pack(BEDROCK, k3, 0);
+    }
+
+    int stateId;
+    int entry;
+    do {
+      --k3;
+      if (chunk.isSectionTransparent(k3)) {
+        // Nothing in this section has a map color, continue from its lowest block.
+        k3 = Math.max(k3 & ~15, minY);
+      }
+      stateId = Block.getId(chunk.getBlockState(worldX, k3, worldZ));
+      entry = colorTable.entry(stateId);
+    } while (BlockColorTable.isTransparent(entry) && k3 > minY);
+
+    if (k3 > minY && BlockColorTable.isFluid(entry)) {
+      // The floor is one above the top solid block, which the vanilla walk counts as well.
+      // That walk never reads minY, hence the clamp.
+      int floor = Math.max(chunk.getOceanFloorHeight(worldX, worldZ), minY + 2);
+      return ColumnSample.pack(stateId, k3, Math.max(1, k3 - floor + 1));
+    }
+
+    return ColumnSample.pack(stateId, k3, 0);
+  }
+}
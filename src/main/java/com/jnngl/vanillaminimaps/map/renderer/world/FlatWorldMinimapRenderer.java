@@ -17,17 +17,27 @@
 
 package com.jnngl.vanillaminimaps.map.renderer.world;
 
+import com.jnngl.vanillaminimaps.config.BlockColorTable;
 import com.jnngl.vanillaminimaps.config.BlockConfig;
+import com.jnngl.vanillaminimaps.config.Config;
 import com.jnngl.vanillaminimaps.map.renderer.world.cache.CacheableWorldMinimapRenderer;
 import com.jnngl.vanillaminimaps.map.renderer.world.cache.WorldMapCache;
+import it.unimi.dsi.fastutil.longs.LongCollection;
 import net.minecraft.core.BlockPos;
-import net.minecraft.world.level.LevelAccessor;
-import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LightLayer;
+import net.minecraft.world.level.chunk.DataLayer;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraft.world.level.lighting.LayerLightEventListener;
 import net.minecraft.world.level.material.MapColor;
 import org.bukkit.World;
 import org.bukkit.block.Block;
-import org.bukkit.craftbukkit.block.CraftBlock;
-import org.bukkit.craftbukkit.block.data.CraftBlockData;
+import org.bukkit.craftbukkit.CraftWorld;
+
+import java.util.Arrays;
 
 public class FlatWorldMinimapRenderer implements CacheableWorldMinimapRenderer {
 
@@ -35,39 +45,138 @@ public class FlatWorldMinimapRenderer implements CacheableWorldMinimapRenderer {
 
   @Override
   public void renderFully(World world, int blockX, int blockZ, byte[] data) {
-    for (int x = 0; x < 128; x++) {
-      for (int z = 0; z < 128; z++) {
-        int worldX = blockX + x;
-        int worldZ = blockZ + z;
-        int index = (127 - z) * 128 + (127 - x);
-        Block block = world.getHighestBlockAt(worldX, worldZ);
-        storeBlockColor(data, index, block);
-      }
-    }
+    renderFully(world, blockX, blockZ, 1, data);
   }
 
-  private void storeBlockColor(byte[] data, int index, Block block) {
-    LevelAccessor accessor = ((CraftBlock) block).getHandle();
-    BlockState state = ((CraftBlockData) block.getBlockData()).getState();
-    MapColor color = BlockConfig.instance().getResolvedOverrides().get(state);
-    if (color == null) {
-      color = state.getMapColor(accessor, new BlockPos(block.getX(), block.getY(), block.getZ()));
-    }
-    int brightnessId = (block.getLightLevel() >> 2) - 1;
-    if (brightnessId < 0) {
-      brightnessId = 3;
+  @Override
+  public void renderFully(World world, int blockX, int blockZ, int scale, byte[] data) {
+    render(world, blockX, blockZ, scale, data, true, null);
+  }
+
+  @Override
+  public void renderCachedTile(World world, int blockX, int blockZ, int scale, byte[] data,
+                               LongCollection missingChunks) {
+    render(world, blockX, blockZ, scale, data, Config.instance().rendering.loadChunks, missingChunks);
+  }
+
+  private void render(World world, int blockX, int blockZ, int scale, byte[] data, boolean loadChunks,
+                      LongCollection missingChunks) {
+    ColumnRenderer renderer = new ColumnRenderer(((CraftWorld) world).getHandle());
+    int maxX = blockX + 127 * scale;
+    int maxZ = blockZ + 127 * scale;
+
+    for (int chunkZ = SectionPos.blockToSectionCoord(blockZ); chunkZ <= SectionPos.blockToSectionCoord(maxZ); chunkZ++) {
+      for (int chunkX = SectionPos.blockToSectionCoord(blockX); chunkX <= SectionPos.blockToSectionCoord(maxX); chunkX++) {
+        // First sampled column and row inside the chunk
+        int startX = blockX + Math.ceilDiv(Math.max(0, SectionPos.sectionToBlockCoord(chunkX) - blockX), scale) * scale;
+        int startZ = blockZ + Math.ceilDiv(Math.max(0, SectionPos.sectionToBlockCoord(chunkZ) - blockZ), scale) * scale;
+        int endX = Math.min(maxX, SectionPos.sectionToBlockCoord(chunkX, 15));
+        int endZ = Math.min(maxZ, SectionPos.sectionToBlockCoord(chunkZ, 15));
+        if (startX > endX || startZ > endZ) {
+          continue;
+        }
+
+        if (!renderer.setChunk(chunkX, chunkZ, loadChunks)) {
+          missingChunks.add(ChunkPos.asLong(chunkX, chunkZ));
+          continue;
+        }
+
+        for (int worldZ = startZ; worldZ <= endZ; worldZ += scale) {
+          for (int worldX = startX; worldX <= endX; worldX += scale) {
+            int x = (worldX - blockX) / scale;
+            int z = (worldZ - blockZ) / scale;
+            data[(127 - z) * 128 + (127 - x)] = renderer.render(worldX, worldZ);
+          }
+        }
+      }
     }
-    MapColor.Brightness brightness = MapColor.Brightness.byId(brightnessId);
-    data[index] = color.getPackedId(brightness);
   }
 
   @Override
   public void updateBlock(Block block, int index, byte[] data) {
-    storeBlockColor(data, index, block);
+    ColumnRenderer renderer = new ColumnRenderer(((CraftWorld) block.getWorld()).getHandle());
+    if (renderer.setChunk(SectionPos.blockToSectionCoord(block.getX()), SectionPos.blockToSectionCoord(block.getZ()), false)) {
+      data[index] = renderer.render(block.getX(), block.getZ());
+    }
   }
 
   @Override
   public WorldMapCache<?> getWorldMapCache() {
     return cache;
   }
+
+  // Colors the highest motion blocking block of a column by its color and light level.
+  // Light is read straight from the light sections of the current chunk, which are fetched once per chunk.
+  private static final class ColumnRenderer {
+
+    private final ServerLevel level;
+    private final BlockColorTable colorTable = BlockConfig.instance().getColorTable();
+    private final LayerLightEventListener blockLight;
+    private final LayerLightEventListener skyLight;
+    private final int skyDarken;
+    private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+    private final DataLayer[] blockLayers;
+    private final DataLayer[] skyLayers;
+    private final boolean[] fetched;
+    private LevelChunk chunk;
+    private Heightmap heightmap;
+
+    private ColumnRenderer(ServerLevel level) {
+      this.level = level;
+      this.blockLight = level.getLightEngine().getLayerListener(LightLayer.BLOCK);
+      this.skyLight = level.getLightEngine().getLayerListener(LightLayer.SKY);
+      this.skyDarken = level.getSkyDarken();
+      this.blockLayers = new DataLayer[level.getSectionsCount()];
+      this.skyLayers = new DataLayer[level.getSectionsCount()];
+      this.fetched = new boolean[level.getSectionsCount()];
+    }
+
+    // Returns false if the chunk is not loaded and loadChunks is not set
+    private boolean setChunk(int chunkX, int chunkZ, boolean loadChunks) {
+      chunk = loadChunks ? level.getChunk(chunkX, chunkZ) : level.getChunkIfLoaded(chunkX, chunkZ);
+      if (chunk == null) {
+        return false;
+      }
+
+      heightmap = chunk.getOrCreateHeightmapUnprimed(Heightmap.Types.MOTION_BLOCKING);
+      Arrays.fill(fetched, false);
+      return true;
+    }
+
+    private byte render(int worldX, int worldZ) {
+      int worldY = heightmap.getFirstAvailable(worldX & 15, worldZ & 15) - 1;
+      pos.set(worldX, worldY, worldZ);
+      MapColor color = MapColor.byId(BlockColorTable.colorId(colorTable.entry(chunk.getBlockState(pos))));
+      int brightnessId = (lightLevel() >> 2) - 1;
+      if (brightnessId < 0) {
+        brightnessId = 3;
+      }
+      return color.getPackedId(MapColor.Brightness.byId(brightnessId));
+    }
+
+    // Same as Level#getMaxLocalRawBrightness
+    private int lightLevel() {
+      int section = level.getSectionIndex(pos.getY());
+      if (section < 0 || section >= fetched.length) {
+        return level.getMaxLocalRawBrightness(pos);
+      }
+
+      if (!fetched[section]) {
+        SectionPos sectionPos = SectionPos.of(pos);
+        blockLayers[section] = blockLight.getDataLayerData(sectionPos);
+        skyLayers[section] = skyLight.getDataLayerData(sectionPos);
+        fetched[section] = true;
+      }
+
+      int x = pos.getX() & 15;
+      int y = pos.getY() & 15;
+      int z = pos.getZ() & 15;
+      DataLayer blockLayer = blockLayers[section];
+      DataLayer skyLayer = skyLayers[section];
+      int block = blockLayer != null ? blockLayer.get(x, y, z) : 0;
+      // Sky light of sections without data is propagated from above, leave that to the light engine
+      int sky = skyLayer != null ? skyLayer.get(x, y, z) : skyLight.getLightValue(pos);
+      return Math.max(block, sky - skyDarken);
+    }
+  }
 }
@@ -0,0 +1,36 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world;
+
+final class ScalarTileShader implements TileShader {
+
+  @Override
+  public void shade(byte[] colorIds, byte[] fluidDepths, short[] heights, byte[] data) {
+    for (int i = 0; i < 128 * 128; i++) {
+      int colorId = colorIds[i];
+      if (colorId == NO_DATA) {
+        data[i] = 0;
+        continue;
+      }
+
+      // Parity of the pixel coordinates matches the parity of the tile coordinates
+      int brightness = ColumnSample.brightness(colorId, fluidDepths[i], heights[i], heights[i + 128], i & 127, i >> 7);
+      data[i] = (byte) (colorId << 2 | brightness);
+    }
+  }
+}
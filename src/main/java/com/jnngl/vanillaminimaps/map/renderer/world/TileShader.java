@@ -0,0 +1,41 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world;
+
+// Final pass of tile rendering, turns color ids, fluid depths and surface heights into map colors.
+// All arrays are in pixel order, heights holds one more row with the heights north of the tile (see HeightPlane).
+public interface TileShader {
+
+  // Color id of pixels without sampled data, they are left transparent.
+  byte NO_DATA = -1;
+  // Fluid depths only matter up to this value.
+  int MAX_FLUID_DEPTH = 15;
+
+  TileShader INSTANCE = create();
+
+  void shade(byte[] colorIds, byte[] fluidDepths, short[] heights, byte[] data);
+
+  private static TileShader create() {
+    // The Vector API is only resolvable with --add-modules jdk.incubator.vector
+    if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+      return new VectorTileShader();
+    }
+
+    return new ScalarTileShader();
+  }
+}
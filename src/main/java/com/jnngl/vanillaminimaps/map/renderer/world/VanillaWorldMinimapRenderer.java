@@ -17,180 +17,160 @@
 
 package com.jnngl.vanillaminimaps.map.renderer.world;
 
-import com.google.common.collect.Iterables;
-import com.google.common.collect.LinkedHashMultiset;
-import com.google.common.collect.Multiset;
-import com.google.common.collect.Multisets;
+import com.jnngl.vanillaminimaps.config.BlockColorTable;
 import com.jnngl.vanillaminimaps.config.BlockConfig;
-import com.jnngl.vanillaminimaps.map.renderer.world.cache.CacheableWorldMinimapRenderer;
+import com.jnngl.vanillaminimaps.config.Config;
+import com.jnngl.vanillaminimaps.map.renderer.world.cache.ColumnSummaryCache;
+import com.jnngl.vanillaminimaps.map.renderer.world.cache.HeightPlane;
+import com.jnngl.vanillaminimaps.map.renderer.world.cache.SnapshotWorldMinimapRenderer;
 import com.jnngl.vanillaminimaps.map.renderer.world.cache.WorldMapCache;
-import net.minecraft.core.BlockPos;
-import net.minecraft.core.Direction;
+import com.jnngl.vanillaminimaps.map.renderer.world.chunk.ChunkGrid;
+import com.jnngl.vanillaminimaps.map.renderer.world.chunk.LiveChunkColumns;
 import net.minecraft.core.SectionPos;
-import net.minecraft.util.Mth;
 import net.minecraft.world.level.Level;
-import net.minecraft.world.level.block.Blocks;
-import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.LevelChunk;
-import net.minecraft.world.level.levelgen.Heightmap;
-import net.minecraft.world.level.material.FluidState;
-import net.minecraft.world.level.material.MapColor;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.craftbukkit.CraftWorld;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
 
-public class VanillaWorldMinimapRenderer implements CacheableWorldMinimapRenderer {
+public class VanillaWorldMinimapRenderer implements SnapshotWorldMinimapRenderer {
 
   private final WorldMapCache<VanillaWorldMinimapRenderer> cache = new WorldMapCache<>(this);
+  private final ColumnSummaryCache summaries = new ColumnSummaryCache();
 
-  private double fillColorSet(Level level, LevelChunk chunk, BlockPos.MutableBlockPos blockPos1,
-                              BlockPos.MutableBlockPos blockPos2, int worldX, int worldZ, AtomicInteger l2,
-                              Multiset<MapColor> multiset) {
-    double d1 = 0.0;
-    int i3;
-    if (level.dimensionType().hasCeiling()) {
-      i3 = worldX + worldZ * 231871;
-      i3 = i3 * i3 * 31287121 + i3 * 11;
-      if ((i3 >> 20 & 1) == 0) {
-        multiset.add(Blocks.DIRT.defaultBlockState().getMapColor(level, BlockPos.ZERO), 10);
-      } else {
-        multiset.add(Blocks.STONE.defaultBlockState().getMapColor(level, BlockPos.ZERO), 100);
-      }
+  private ChunkGrid captureTile(World world, int blockX, int blockZ, int scale, boolean snapshot, boolean loadChunks) {
+    Level level = ((CraftWorld) world).getHandle();
+    return ChunkGrid.capture(level, summaries, blockX, blockZ - scale, blockX + 127 * scale, blockZ + 127 * scale,
+        snapshot, loadChunks);
+  }
 
-      d1 = 100.0;
-    } else {
-      blockPos1.set(worldX, 0, worldZ);
-      int k3 = chunk.getHeight(Heightmap.Types.WORLD_SURFACE, blockPos1.getX(), blockPos1.getZ()) + 1;
-      BlockState blockState;
-      if (k3 <= level.getMinY() + 1) {
-        blockState = Blocks.BEDROCK.defaultBlockState();
-      } else {
-        do {
-          --k3;
-          blockPos1.setY(k3);
-          blockState = chunk.getBlockState(blockPos1);
-        } while (blockState.getMapColor(level, blockPos1) == MapColor.NONE && k3 > level.getMinY());
-
-        if (k3 > level.getMinY() && !blockState.getFluidState().isEmpty()) {
-          int l3 = k3 - 1;
-          blockPos2.set(blockPos1);
-
-          BlockState iblockdata1;
-          do {
-            blockPos2.setY(l3--);
-            iblockdata1 = chunk.getBlockState(blockPos2);
-            l2.incrementAndGet();
-          } while (l3 > level.getMinY() && !iblockdata1.getFluidState().isEmpty());
-
-          blockState = this.getCorrectStateForFluidBlock(level, blockState, blockPos1);
-        }
-      }
+  @Override
+  public ChunkGrid captureTile(World world, int blockX, int blockZ, int scale, boolean snapshot) {
+    return captureTile(world, blockX, blockZ, scale, snapshot, Config.instance().rendering.loadChunks);
+  }
 
-      d1 += k3;
-      MapColor color = BlockConfig.instance().getResolvedOverrides().get(blockState);
-      if (color == null) {
-        color = blockState.getMapColor(level, blockPos1);
-      }
-      multiset.add(color);
+  // Row -1 is the row of columns one pixel north of the tile, so scaled tiles shade against the previous
+  // displayed row. Only scale 1 computes whole chunk summaries, scaled tiles sample just the displayed columns.
+  @Override
+  public void renderTile(ChunkGrid grid, int blockX, int blockZ, int scale, byte[] data, @Nullable HeightPlane heights) {
+    ColumnSampler sampler = grid.createSampler();
+    BlockColorTable colorTable = sampler.colorTable();
+    byte[] colorIds = new byte[128 * 128];
+    byte[] fluidDepths = new byte[128 * 128];
+    Arrays.fill(colorIds, TileShader.NO_DATA);
+    if (heights == null) {
+      heights = new HeightPlane();
     }
 
-    return d1;
-  }
+    for (int x = 0; x < 128; ++x) {
+      int northHeight = 0;
+      int worldX = x * scale + blockX;
 
-  private void storeMapColor(Multiset<MapColor> multiset, double d0, double d1, int l2, int x, int z, int index, byte[] data) {
-    MapColor mapColor = Iterables.getFirst(Multisets.copyHighestCountFirst(multiset), MapColor.NONE);
-    double d2;
-    MapColor.Brightness brightness;
-    if (mapColor == MapColor.WATER) {
-      d2 = (double) l2 * 0.1 + (double) (x + z & 1) * 0.2;
-      if (d2 < 0.5) {
-        brightness = MapColor.Brightness.HIGH;
-      } else if (d2 > 0.9) {
-        brightness = MapColor.Brightness.LOW;
-      } else {
-        brightness = MapColor.Brightness.NORMAL;
-      }
-    } else {
-      d2 = (d1 - d0) * 4.0 / (double) 5 + ((double) (x + z & 1) - 0.5) * 0.4;
-      if (d2 > 0.6) {
-        brightness = MapColor.Brightness.HIGH;
-      } else if (d2 < -0.6) {
-        brightness = MapColor.Brightness.LOW;
-      } else {
-        brightness = MapColor.Brightness.NORMAL;
+      for (int z = -1; z < 128; ++z) {
+        int worldZ = z * scale + blockZ;
+        long sample = grid.sample(sampler, worldX, worldZ, scale == 1);
+        if (sample != ChunkGrid.MISSING) {
+          if (z >= 0) {
+            int index = (127 - z) * 128 + (127 - x);
+            colorIds[index] = (byte) ColumnSample.colorId(colorTable, sample);
+            fluidDepths[index] = (byte) Math.min(ColumnSample.fluidDepth(sample), TileShader.MAX_FLUID_DEPTH);
+          }
+
+          northHeight = ColumnSample.height(sample);
+        }
+
+        heights.set(x, z, northHeight);
       }
     }
 
-    data[index] = mapColor.getPackedId(brightness);
+    TileShader.INSTANCE.shade(colorIds, fluidDepths, heights.values(), data);
   }
 
-  private BlockState getCorrectStateForFluidBlock(Level world, BlockState state, BlockPos pos) {
-    FluidState fluid = state.getFluidState();
-    return !fluid.isEmpty() && !state.isFaceSturdy(world, pos, Direction.UP) ? fluid.createLegacyBlock() : state;
+  @Override
+  public void completeTile(World world, ChunkGrid grid) {
+    summaries.store(world, grid);
   }
 
   @Override
   public void renderFully(World world, int blockX, int blockZ, byte[] data) {
-    Level level = ((CraftWorld) world).getHandle();
+    renderFully(world, blockX, blockZ, 1, data);
+  }
+
+  @Override
+  public void renderFully(World world, int blockX, int blockZ, int scale, byte[] data) {
+    ChunkGrid grid = captureTile(world, blockX, blockZ, scale, false, true);
+    renderTile(grid, blockX, blockZ, scale, data, null);
+    completeTile(world, grid);
+  }
 
-    BlockPos.MutableBlockPos blockPos1 = new BlockPos.MutableBlockPos();
-    BlockPos.MutableBlockPos blockPos2 = new BlockPos.MutableBlockPos();
+  private static ColumnSampler createSampler(Level level) {
+    return new ColumnSampler(level.getMinY(), level.dimensionType().hasCeiling());
+  }
 
-    for (int x = 0; x < 128; ++x) {
-      double d0 = 0.0;
+  private long sampleColumn(World world, int worldX, int worldZ) {
+    int chunkX = SectionPos.blockToSectionCoord(worldX);
+    int chunkZ = SectionPos.blockToSectionCoord(worldZ);
+    long[] summary = summaries.get(world, chunkX, chunkZ);
+    if (summary != null) {
+      return summary[(worldZ & 15) << 4 | (worldX & 15)];
+    }
 
-      for (int z = -1; z < 128; ++z) {
-        int worldX = x + blockX;
-        int worldZ = z + blockZ;
-        Multiset<MapColor> multiset = LinkedHashMultiset.create();
-        LevelChunk chunk = level.getChunk(SectionPos.blockToSectionCoord(worldX), SectionPos.blockToSectionCoord(worldZ));
-        if (!chunk.isEmpty()) {
-          AtomicInteger l2 = new AtomicInteger();
-          double d1 = fillColorSet(level, chunk, blockPos1, blockPos2, worldX, worldZ, l2, multiset);
+    Level level = ((CraftWorld) world).getHandle();
+    return createSampler(level).sample(new LiveChunkColumns(level.getChunk(chunkX, chunkZ)), worldX, worldZ);
+  }
 
-          if (z >= 0) {
-            int index = (127 - z) * 128 + (127 - x);
-            storeMapColor(multiset, d0, d1, l2.get(), x, z, index, data);
-          }
+  @Override
+  public void updateBlock(Block block, int index, byte[] data) {
+    World world = block.getWorld();
+    long sample = sampleColumn(world, block.getX(), block.getZ());
+    int northHeight = ColumnSample.height(sampleColumn(world, block.getX(), block.getZ() - 1));
+    data[index] = ColumnSample.shade(BlockConfig.instance().getColorTable(), sample, northHeight, block.getX(), block.getZ());
+  }
 
-          d0 = d1;
-        }
-      }
+  @Override
+  public void updateColumn(Block block, int x, int z, @Nullable byte[] data, @Nullable HeightPlane heights,
+                           @Nullable byte[] southData, @Nullable HeightPlane southHeights) {
+    long sample = sampleColumn(block.getWorld(), block.getX(), block.getZ());
+    int height = ColumnSample.height(sample);
+
+    if (data != null && heights != null) {
+      data[(127 - z) * 128 + (127 - x)] =
+          ColumnSample.shade(BlockConfig.instance().getColorTable(), sample, heights.height(x, z - 1), x, z);
+      heights.set(x, z, height);
+    }
+
+    if (southData != null && southHeights != null) {
+      int southZ = z == 127 ? 0 : z + 1;
+      southHeights.set(x, southZ - 1, height);
+      int index = (127 - southZ) * 128 + (127 - x);
+      southData[index] = ColumnSample.reshade(southData[index], southHeights.height(x, southZ), height);
     }
   }
 
   @Override
-  public void updateBlock(Block block, int index, byte[] data) {
-    Level world = ((CraftWorld) block.getWorld()).getHandle();
-
-    int width = 64;
-    int height = 64;
-    int blockX = Mth.floor(block.getX() - (double) width) + 64;
-    int blockZ = Mth.floor(block.getZ() - (double) height) + 64;
-
-    BlockPos.MutableBlockPos blockPos1 = new BlockPos.MutableBlockPos();
-    BlockPos.MutableBlockPos blockPos2 = new BlockPos.MutableBlockPos();
-
-    double d0 = 0.0;
-
-    for (int z = -1; z < 1; ++z) {
-      int worldZ = z + blockZ;
-      Multiset<MapColor> multiset = LinkedHashMultiset.create();
-      LevelChunk chunk = world.getChunk(SectionPos.blockToSectionCoord(blockX), SectionPos.blockToSectionCoord(worldZ));
-      if (!chunk.isEmpty()) {
-        AtomicInteger l2 = new AtomicInteger();
-        double d1 = fillColorSet(world, chunk, blockPos1, blockPos2, blockX, worldZ, l2, multiset);
-        if (z == 0) {
-          storeMapColor(multiset, d0, d1, l2.get(), blockX, worldZ, index, data);
-        } else {
-          d0 = d1;
-        }
-      }
+  public void blockChanged(Block block) {
+    World world = block.getWorld();
+    int chunkX = SectionPos.blockToSectionCoord(block.getX());
+    int chunkZ = SectionPos.blockToSectionCoord(block.getZ());
+    summaries.markModified(world, chunkX, chunkZ);
+
+    long[] summary = summaries.get(world, chunkX, chunkZ);
+    if (summary != null) {
+      Level level = ((CraftWorld) world).getHandle();
+      LevelChunk chunk = level.getChunk(chunkX, chunkZ);
+      summary[(block.getZ() & 15) << 4 | (block.getX() & 15)] =
+          createSampler(level).sample(new LiveChunkColumns(chunk), block.getX(), block.getZ());
     }
   }
 
+  @Override
+  public void unloadChunk(World world, int chunkX, int chunkZ) {
+    summaries.unloadChunk(world, chunkX, chunkZ);
+  }
+
   @Override
   public WorldMapCache<?> getWorldMapCache() {
     return cache;
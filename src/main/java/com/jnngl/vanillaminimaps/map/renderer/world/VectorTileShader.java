@@ -0,0 +1,68 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world;
+
+import jdk.incubator.vector.*;
+import net.minecraft.world.level.material.MapColor;
+
+// Shades a whole row segment at once, see ColumnSample.brightness for the scalar form.
+// Heights are compared as shorts, everything else is done in bytes with the same number of lanes.
+final class VectorTileShader implements TileShader {
+
+  private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Byte> BYTES =
+      VectorSpecies.of(byte.class, VectorShape.forBitSize(SHORTS.vectorBitSize() / 2));
+
+  private static final ByteVector LOW = ByteVector.broadcast(BYTES, (byte) MapColor.Brightness.LOW.id);
+  private static final ByteVector NORMAL = ByteVector.broadcast(BYTES, (byte) MapColor.Brightness.NORMAL.id);
+  private static final ByteVector HIGH = ByteVector.broadcast(BYTES, (byte) MapColor.Brightness.HIGH.id);
+
+  // Checkerboard parity of two consecutive pixel rows
+  private static final byte[] PARITY = new byte[256];
+
+  static {
+    for (int i = 0; i < PARITY.length; i++) {
+      PARITY[i] = (byte) ((i & 127) + (i >> 7) & 1);
+    }
+  }
+
+  @Override
+  public void shade(byte[] colorIds, byte[] fluidDepths, short[] heights, byte[] data) {
+    // Lane count always divides 128, so a segment never crosses a row
+    for (int i = 0; i < 128 * 128; i += BYTES.length()) {
+      ByteVector colorId = ByteVector.fromArray(BYTES, colorIds, i);
+      ByteVector depth = ByteVector.fromArray(BYTES, fluidDepths, i);
+      ByteVector parity = ByteVector.fromArray(BYTES, PARITY, i & 255);
+      ShortVector height = ShortVector.fromArray(SHORTS, heights, i);
+      ShortVector northHeight = ShortVector.fromArray(SHORTS, heights, i + 128);
+
+      ByteVector land = NORMAL
+          .blend(HIGH, height.compare(VectorOperators.GT, northHeight).cast(BYTES))
+          .blend(LOW, height.compare(VectorOperators.LT, northHeight).cast(BYTES));
+      ByteVector water = NORMAL
+          .blend(HIGH, depth.add(parity.mul((byte) 2)).compare(VectorOperators.LT, 5))
+          .blend(LOW, depth.add(parity.mul((byte) 3)).compare(VectorOperators.GT, 9));
+      ByteVector brightness = land.blend(water, colorId.compare(VectorOperators.EQ, MapColor.WATER.id));
+
+      colorId.lanewise(VectorOperators.LSHL, 2)
+          .or(brightness)
+          .blend((byte) 0, colorId.compare(VectorOperators.EQ, NO_DATA))
+          .intoArray(data, i);
+    }
+  }
+}
@@ -18,8 +18,28 @@
 package com.jnngl.vanillaminimaps.map.renderer.world.cache;
 
 import com.jnngl.vanillaminimaps.map.renderer.world.WorldMinimapRenderer;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 
 public interface CacheableWorldMinimapRenderer extends WorldMinimapRenderer {
 
   WorldMapCache<?> getWorldMapCache();
+
+  // Renders a tile that only shows every scale-th column and row, starting at the given block.
+  void renderFully(World world, int blockX, int blockZ, int scale, byte[] data);
+
+  // Renders a tile for the cache. Chunks that were skipped because they are not loaded are added to
+  // missingChunks, the tile is rendered again once they load.
+  default void renderCachedTile(World world, int blockX, int blockZ, int scale, byte[] data,
+                                LongCollection missingChunks) {
+    renderFully(world, blockX, blockZ, scale, data);
+  }
+
+  // Called for every changed block, whether or not a cached tile covers it.
+  default void blockChanged(Block block) {
+  }
+
+  default void unloadChunk(World world, int chunkX, int chunkZ) {
+  }
 }
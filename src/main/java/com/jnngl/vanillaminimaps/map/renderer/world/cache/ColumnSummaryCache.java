@@ -0,0 +1,96 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import com.jnngl.vanillaminimaps.map.renderer.world.chunk.ChunkGrid;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.world.level.ChunkPos;
+import org.bukkit.World;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Per-chunk column summaries (see ColumnSample), shared by every tile that covers the chunk.
+// Only accessed from the main thread.
+public class ColumnSummaryCache {
+
+  private final Map<UUID, WorldSummaries> worlds = new HashMap<>();
+  private long stamp;
+
+  public long stamp() {
+    return stamp;
+  }
+
+  public long[] get(World world, int chunkX, int chunkZ) {
+    WorldSummaries summaries = worlds.get(world.getUID());
+    return summaries != null ? summaries.summaries.get(ChunkPos.asLong(chunkX, chunkZ)) : null;
+  }
+
+  // Stores the summaries computed while rendering the grid, unless their chunk changed after it was captured.
+  public void store(World world, ChunkGrid grid) {
+    WorldSummaries summaries = null;
+    for (int z = 0; z < grid.getDepth(); z++) {
+      for (int x = 0; x < grid.getWidth(); x++) {
+        long[] summary = grid.getComputedSummary(x, z);
+        if (summary == null) {
+          continue;
+        }
+
+        if (summaries == null) {
+          summaries = worlds.computeIfAbsent(world.getUID(), k -> new WorldSummaries());
+        }
+
+        int chunkX = grid.getMinChunkX() + x;
+        int chunkZ = grid.getMinChunkZ() + z;
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        // Chunks unloaded while an async render was running would never be evicted
+        if (summaries.modified.get(key) <= grid.getStamp() && world.isChunkLoaded(chunkX, chunkZ)) {
+          summaries.summaries.put(key, summary);
+        }
+      }
+    }
+  }
+
+  public void markModified(World world, int chunkX, int chunkZ) {
+    worlds.computeIfAbsent(world.getUID(), k -> new WorldSummaries()).modified.put(ChunkPos.asLong(chunkX, chunkZ), ++stamp);
+  }
+
+  public void unloadChunk(World world, int chunkX, int chunkZ) {
+    WorldSummaries summaries = worlds.get(world.getUID());
+    if (summaries == null) {
+      return;
+    }
+
+    long key = ChunkPos.asLong(chunkX, chunkZ);
+    summaries.summaries.remove(key);
+    summaries.modified.remove(key);
+    if (summaries.summaries.isEmpty() && summaries.modified.isEmpty()) {
+      worlds.remove(world.getUID());
+    }
+  }
+
+  private static final class WorldSummaries {
+
+    private final Long2ObjectMap<long[]> summaries = new Long2ObjectOpenHashMap<>();
+    private final Long2LongMap modified = new Long2LongOpenHashMap();
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+public record HeapTileView(byte[] data) implements TileView {
+
+  @Override
+  public byte get(int index) {
+    return data[index];
+  }
+
+  @Override
+  public void copyTo(int index, byte[] destination, int destinationIndex, int length) {
+    System.arraycopy(data, index, destination, destinationIndex, length);
+  }
+}
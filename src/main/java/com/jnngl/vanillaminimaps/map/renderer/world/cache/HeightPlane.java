@@ -0,0 +1,49 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+// Surface heights of a cached tile, rows -1 to 127. Row -1 belongs to the tile to the north
+// and is only kept to shade row 0.
+public final class HeightPlane {
+
+  private final short[] heights = new short[128 * 129];
+
+  // Same order as tile pixels, so the north neighbour of a pixel is always 128 entries further.
+  // Row -1 is stored last.
+  private static int index(int x, int z) {
+    return (127 - z) << 7 | (127 - x);
+  }
+
+  public int height(int x, int z) {
+    return heights[index(x, z)];
+  }
+
+  public void set(int x, int z, int height) {
+    heights[index(x, z)] = (short) height;
+  }
+
+  public short[] values() {
+    return heights;
+  }
+
+  public HeightPlane copy() {
+    HeightPlane copy = new HeightPlane();
+    System.arraycopy(heights, 0, copy.heights, 0, heights.length);
+    return copy;
+  }
+}
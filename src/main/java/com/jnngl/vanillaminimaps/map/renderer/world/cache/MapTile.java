@@ -0,0 +1,29 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+// A published version of a cached tile. Neither the colors nor the heights are modified once the tile is
+// published, updates copy them into a new version with a higher stamp.
+public record MapTile(TileView view, @Nullable HeightPlane heights, long stamp) {
+
+  public long sizeBytes() {
+    return TileView.SIZE + (heights != null ? heights.values().length * 2L : 0);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import it.unimi.dsi.fastutil.longs.*;
+import net.minecraft.world.level.ChunkPos;
+import org.bukkit.World;
+
+import java.util.*;
+
+// Remembers which cached tiles were rendered without some of their chunks, so they can be refreshed
+// once those chunks are loaded. Missing chunks are requested asynchronously and never generated.
+// Thread-safe.
+public class MissingChunkTracker {
+
+  private final Map<UUID, Long2ObjectMap<LongSet>> waitingTiles = new HashMap<>();
+  private final Long2ObjectMap<TileChunks> missingChunks = new Long2ObjectOpenHashMap<>();
+
+  // Replaces the chunks the tile waits for. Only chunks nobody waited for yet are requested.
+  public synchronized void track(World world, long tileKey, int scale, int alignedX, int alignedZ, LongCollection chunks) {
+    TileChunks previous = missingChunks.remove(tileKey);
+    if (previous != null) {
+      previous.chunks().forEach(chunk -> {
+        if (!chunks.contains(chunk)) {
+          stopWaiting(previous.tile().world(), chunk, tileKey);
+        }
+      });
+    }
+
+    if (chunks.isEmpty()) {
+      return;
+    }
+
+    Long2ObjectMap<LongSet> tiles = waitingTiles.computeIfAbsent(world.getUID(), k -> new Long2ObjectOpenHashMap<>());
+    chunks.forEach(chunk -> {
+      LongSet waiting = tiles.get(chunk);
+      if (waiting == null) {
+        waiting = new LongOpenHashSet();
+        tiles.put(chunk, waiting);
+        world.getChunkAtAsync(ChunkPos.getX(chunk), ChunkPos.getZ(chunk), false);
+      }
+
+      waiting.add(tileKey);
+    });
+    WaitingTile tile = new WaitingTile(world.getUID(), tileKey, scale, alignedX, alignedZ);
+    missingChunks.put(tileKey, new TileChunks(tile, new LongOpenHashSet(chunks)));
+  }
+
+  // Whether the tile was rendered with all of its chunks
+  public synchronized boolean isComplete(long tileKey) {
+    return !missingChunks.containsKey(tileKey);
+  }
+
+  public synchronized void release(long tileKey) {
+    TileChunks tile = missingChunks.remove(tileKey);
+    if (tile != null) {
+      tile.chunks().forEach(chunk -> stopWaiting(tile.tile().world(), chunk, tileKey));
+    }
+  }
+
+  private void stopWaiting(UUID world, long chunk, long tileKey) {
+    Long2ObjectMap<LongSet> tiles = waitingTiles.get(world);
+    if (tiles == null) {
+      return;
+    }
+
+    LongSet waiting = tiles.get(chunk);
+    if (waiting != null && waiting.remove(tileKey) && waiting.isEmpty()) {
+      tiles.remove(chunk);
+      if (tiles.isEmpty()) {
+        waitingTiles.remove(world);
+      }
+    }
+  }
+
+  // Returns the tiles that were waiting for the chunk.
+  public synchronized List<WaitingTile> chunkLoaded(World world, int chunkX, int chunkZ) {
+    Long2ObjectMap<LongSet> tiles = waitingTiles.get(world.getUID());
+    if (tiles == null) {
+      return List.of();
+    }
+
+    long chunk = ChunkPos.asLong(chunkX, chunkZ);
+    LongSet waiting = tiles.remove(chunk);
+    if (waiting == null) {
+      return List.of();
+    }
+
+    if (tiles.isEmpty()) {
+      waitingTiles.remove(world.getUID());
+    }
+
+    List<WaitingTile> loaded = new ArrayList<>(waiting.size());
+    waiting.forEach(tileKey -> {
+      TileChunks tile = missingChunks.get(tileKey);
+      if (tile != null) {
+        tile.chunks().remove(chunk);
+        loaded.add(tile.tile());
+      }
+    });
+    return loaded;
+  }
+
+  public record WaitingTile(UUID world, long key, int scale, int alignedX, int alignedZ) {
+  }
+
+  private record TileChunks(WaitingTile tile, LongSet chunks) {
+  }
+}
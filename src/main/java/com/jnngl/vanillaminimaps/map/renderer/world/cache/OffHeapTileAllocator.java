@@ -0,0 +1,115 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
+import it.unimi.dsi.fastutil.ints.IntSortedSet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps tile colors in slabs of direct memory, so a large resident tile set doesn't end up in the old
+// generation. Freed slots are only reused after reclaim(), views that were read in the same tick stay valid.
+// Allocation prefers the lowest free slot, so slabs past a peak drain and are released once completely free.
+// Thread-safe.
+public final class OffHeapTileAllocator {
+
+  private static final int TILES_PER_SLAB = 64;
+
+  // Released slabs leave a null entry, so slot numbers stay stable
+  private final List<ByteBuffer> slabs = new ArrayList<>();
+  private final IntArrayList usedSlots = new IntArrayList();
+  private final IntSortedSet freeSlots = new IntRBTreeSet();
+  private final IntArrayList retiredSlots = new IntArrayList();
+  private int slabCount;
+
+  public synchronized TileView allocate(byte[] data) {
+    if (freeSlots.isEmpty()) {
+      addSlab();
+    }
+
+    int slot = freeSlots.firstInt();
+    freeSlots.remove(slot);
+    int slab = slot / TILES_PER_SLAB;
+    usedSlots.set(slab, usedSlots.getInt(slab) + 1);
+    ByteBuffer buffer = slabs.get(slab).slice((slot % TILES_PER_SLAB) * TileView.SIZE, TileView.SIZE);
+    buffer.put(0, data, 0, TileView.SIZE);
+    return new OffHeapTileView(this, slot, buffer);
+  }
+
+  // Guarded by this
+  private void addSlab() {
+    int slab = slabs.indexOf(null);
+    if (slab < 0) {
+      slab = slabs.size();
+      slabs.add(null);
+      usedSlots.add(0);
+    }
+
+    slabs.set(slab, ByteBuffer.allocateDirect(TILES_PER_SLAB * TileView.SIZE));
+    slabCount++;
+    int first = slab * TILES_PER_SLAB;
+    for (int slot = first; slot < first + TILES_PER_SLAB; slot++) {
+      freeSlots.add(slot);
+    }
+  }
+
+  public void free(TileView view) {
+    if (view instanceof OffHeapTileView offHeap && offHeap.allocator == this) {
+      synchronized (this) {
+        retiredSlots.add(offHeap.slot);
+      }
+    }
+  }
+
+  // Slabs left without tiles are dropped, their memory is freed once the last view of them is collected.
+  public synchronized void reclaim() {
+    for (int i = 0; i < retiredSlots.size(); i++) {
+      int slot = retiredSlots.getInt(i);
+      int slab = slot / TILES_PER_SLAB;
+      freeSlots.add(slot);
+      usedSlots.set(slab, usedSlots.getInt(slab) - 1);
+      if (usedSlots.getInt(slab) == 0) {
+        int first = slab * TILES_PER_SLAB;
+        freeSlots.subSet(first, first + TILES_PER_SLAB).clear();
+        slabs.set(slab, null);
+        slabCount--;
+      }
+    }
+    retiredSlots.clear();
+  }
+
+  public synchronized long reservedBytes() {
+    return (long) slabCount * TILES_PER_SLAB * TileView.SIZE;
+  }
+
+  private record OffHeapTileView(OffHeapTileAllocator allocator, int slot, ByteBuffer buffer) implements TileView {
+
+    @Override
+    public byte get(int index) {
+      return buffer.get(index);
+    }
+
+    @Override
+    public void copyTo(int index, byte[] destination, int destinationIndex, int length) {
+      buffer.get(index, destination, destinationIndex, length);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import com.jnngl.vanillaminimaps.map.renderer.world.chunk.ChunkGrid;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.jetbrains.annotations.Nullable;
+
+// Renderer that can split tile rendering into a main thread capture and a thread-safe render pass.
+// Tiles of such renderers are shaded from surface heights, which are cached in a HeightPlane next to the tile.
+public interface SnapshotWorldMinimapRenderer extends CacheableWorldMinimapRenderer {
+
+  ChunkGrid captureTile(World world, int blockX, int blockZ, int scale, boolean snapshot);
+
+  void renderTile(ChunkGrid grid, int blockX, int blockZ, int scale, byte[] data, @Nullable HeightPlane heights);
+
+  // Re-samples the changed column into pixel x, z of the tile containing it and re-shades the pixel south of it,
+  // which lives in southData when the column is on the last row of its tile. Missing tiles are null.
+  void updateColumn(Block block, int x, int z, @Nullable byte[] data, @Nullable HeightPlane heights,
+                    @Nullable byte[] southData, @Nullable HeightPlane southHeights);
+
+  // Called on the main thread once a rendered tile is published.
+  default void completeTile(World world, ChunkGrid grid) {
+  }
+}
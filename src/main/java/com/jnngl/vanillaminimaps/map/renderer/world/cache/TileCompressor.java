@@ -0,0 +1,137 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import java.util.Arrays;
+
+// LZ4-style block compression for idle tiles. Map colors repeat in runs, checkered water and whole rows,
+// which are all matches at small offsets.
+public final class TileCompressor {
+
+  private static final int MIN_MATCH = 4;
+  private static final int HASH_BITS = 12;
+  private static final int MAX_OFFSET = 0xFFFF;
+
+  private TileCompressor() {
+  }
+
+  public static byte[] compress(byte[] src) {
+    int length = src.length;
+    byte[] out = new byte[length + length / 255 + 16];
+    // Positions are stored + 1, so zero means empty
+    int[] table = new int[1 << HASH_BITS];
+    int anchor = 0;
+    int in = 0;
+    int op = 0;
+    while (in + MIN_MATCH <= length) {
+      int sequence = readInt(src, in);
+      int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+      int match = table[hash] - 1;
+      table[hash] = in + 1;
+      if (match < 0 || in - match > MAX_OFFSET || readInt(src, match) != sequence) {
+        in++;
+        continue;
+      }
+
+      int matchLength = MIN_MATCH;
+      while (in + matchLength < length && src[match + matchLength] == src[in + matchLength]) {
+        matchLength++;
+      }
+
+      op = writeSequence(out, op, src, anchor, in - anchor, in - match, matchLength);
+      in += matchLength;
+      anchor = in;
+    }
+
+    op = writeSequence(out, op, src, anchor, length - anchor, 0, 0);
+    return Arrays.copyOf(out, op);
+  }
+
+  private static int writeSequence(byte[] out, int op, byte[] src, int literals, int literalLength,
+                                   int offset, int matchLength) {
+    int tokenOp = op++;
+    int token = Math.min(literalLength, 15) << 4;
+    op = writeLength(out, op, literalLength - 15);
+    System.arraycopy(src, literals, out, op, literalLength);
+    op += literalLength;
+    if (matchLength > 0) {
+      token |= Math.min(matchLength - MIN_MATCH, 15);
+      out[op++] = (byte) offset;
+      out[op++] = (byte) (offset >>> 8);
+      op = writeLength(out, op, matchLength - MIN_MATCH - 15);
+    }
+    out[tokenOp] = (byte) token;
+    return op;
+  }
+
+  private static int writeLength(byte[] out, int op, int remaining) {
+    if (remaining < 0) {
+      return op;
+    }
+
+    while (remaining >= 255) {
+      out[op++] = (byte) 255;
+      remaining -= 255;
+    }
+    out[op++] = (byte) remaining;
+    return op;
+  }
+
+  public static byte[] decompress(byte[] src, int length) {
+    byte[] out = new byte[length];
+    int in = 0;
+    int op = 0;
+    while (true) {
+      int token = src[in++] & 0xFF;
+      int literalLength = token >>> 4;
+      if (literalLength == 15) {
+        int extra;
+        do {
+          extra = src[in++] & 0xFF;
+          literalLength += extra;
+        } while (extra == 255);
+      }
+
+      System.arraycopy(src, in, out, op, literalLength);
+      in += literalLength;
+      op += literalLength;
+      if (in == src.length) {
+        return out;
+      }
+
+      int offset = (src[in++] & 0xFF) | (src[in++] & 0xFF) << 8;
+      int matchLength = (token & 15) + MIN_MATCH;
+      if ((token & 15) == 15) {
+        int extra;
+        do {
+          extra = src[in++] & 0xFF;
+          matchLength += extra;
+        } while (extra == 255);
+      }
+
+      // Matches may overlap the bytes they produce
+      for (int from = op - offset, end = op + matchLength; op < end; ) {
+        out[op++] = out[from++];
+      }
+    }
+  }
+
+  private static int readInt(byte[] src, int index) {
+    return (src[index] & 0xFF) | (src[index + 1] & 0xFF) << 8 | (src[index + 2] & 0xFF) << 16 | src[index + 3] << 24;
+  }
+}
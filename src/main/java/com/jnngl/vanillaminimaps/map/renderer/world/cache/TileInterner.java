@@ -0,0 +1,80 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Shares one array between all tiles with identical contents, e.g. ocean or unexplored tiles.
+// Interned arrays must not be modified. Thread-safe.
+public final class TileInterner {
+
+  private final Map<Content, Entry> entries = new HashMap<>();
+  private long bytes;
+
+  public synchronized byte[] intern(byte[] data) {
+    Entry entry = entries.computeIfAbsent(new Content(data), content -> {
+      bytes += data.length;
+      return new Entry(data);
+    });
+    entry.references++;
+    return entry.data;
+  }
+
+  public synchronized void release(byte[] data) {
+    Content content = new Content(data);
+    Entry entry = entries.get(content);
+    if (entry != null && --entry.references == 0) {
+      entries.remove(content);
+      bytes -= data.length;
+    }
+  }
+
+  // Size of all distinct interned arrays
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  private record Content(byte[] data, int hash) {
+
+    private Content(byte[] data) {
+      this(data, Arrays.hashCode(data));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Content content && hash == content.hash && Arrays.equals(data, content.data);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Entry {
+
+    private final byte[] data;
+    private int references;
+
+    private Entry(byte[] data) {
+      this.data = data;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class TileRenderExecutor {
+
+  private final Plugin plugin;
+  private final ExecutorService workers;
+  private final Executor mainThread;
+
+  public TileRenderExecutor(Plugin plugin, int threads) {
+    this.plugin = plugin;
+    AtomicInteger counter = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+      Thread thread = new Thread(runnable, "VanillaMinimaps Tile Renderer #" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.mainThread = command -> {
+      if (this.plugin.isEnabled()) {
+        Bukkit.getScheduler().runTask(this.plugin, command);
+      }
+    };
+  }
+
+  public Executor workers() {
+    return workers;
+  }
+
+  public Executor mainThread() {
+    return mainThread;
+  }
+
+  public void shutdown() {
+    workers.shutdownNow();
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Persists rendered tiles in memory-mapped region files of 32x32 fixed-size tile slots, so tiles don't have
+// to be rendered again after a restart. Files are laid out as <scale>/<world uuid>/r.<x>.<z>.tiles, each
+// starting with one header entry per slot that marks whether the slot holds a valid tile. Only the most recently
+// used regions stay mapped, idle ones are closed and unmapped. Thread-safe.
+public final class TileStore implements AutoCloseable {
+
+  private static final int TILE_SIZE = 128 * 128;
+  private static final int REGION_SHIFT = 5;
+  private static final int REGION_SIZE = 1 << REGION_SHIFT;
+  private static final int SLOTS = REGION_SIZE * REGION_SIZE;
+  private static final int HEADER_SIZE = SLOTS * Integer.BYTES;
+  private static final long FILE_SIZE = HEADER_SIZE + (long) SLOTS * TILE_SIZE;
+  // Changing the tile format requires a new magic, so old slots are no longer treated as valid
+  private static final int VALID_SLOT = 0x564D5401;
+  // Each open region holds a file descriptor and 16 MiB of address space
+  private static final int MAX_OPEN_REGIONS = 64;
+  private static final Region NO_FILE = new Region(null, null);
+
+  private final Path directory;
+  private final Logger logger;
+  // Guarded by itself, in access order
+  private final LinkedHashMap<RegionPosition, Region> regions = new LinkedHashMap<>(16, 0.75F, true);
+  private volatile boolean closed;
+
+  // Tiles of other scales missed the block updates while they were not displayed, so they are discarded.
+  public TileStore(Path directory, int scale, Logger logger) throws IOException {
+    this.directory = directory;
+    this.logger = logger;
+    Files.createDirectories(directory);
+    try (Stream<Path> scales = Files.list(directory)) {
+      for (Path path : (Iterable<Path>) scales::iterator) {
+        if (!path.getFileName().toString().equals(Integer.toString(scale))) {
+          logger.info("Discarding stored map tiles of another minimap scale: " + path);
+          delete(path);
+        }
+      }
+    }
+  }
+
+  private static void delete(Path path) throws IOException {
+    try (Stream<Path> files = Files.walk(path)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  // Decodes the tile coordinates of a WorldMapCache key
+  private static int tileX(long key) {
+    int x = (int) (key & 0x1FFFFFF);
+    return (key >> 25 & 1) != 0 ? -x : x;
+  }
+
+  private static int tileZ(long key) {
+    int z = (int) (key >> 26 & 0x1FFFFFF);
+    return (key >> 51 & 1) != 0 ? -z : z;
+  }
+
+  private static int scale(long key) {
+    return (int) (key >> 52 & 0xF) + 1;
+  }
+
+  private static int slot(long key) {
+    return (tileZ(key) & (REGION_SIZE - 1)) << REGION_SHIFT | (tileX(key) & (REGION_SIZE - 1));
+  }
+
+  @Nullable
+  public byte[] read(UUID world, long key) {
+    Region region = region(world, key, false);
+    return region != null ? region.read(slot(key)) : null;
+  }
+
+  // Retried when the region was closed in between, a lost invalidation would leave a stale tile behind.
+  public void write(UUID world, long key, byte[] data) {
+    Region region;
+    do {
+      region = region(world, key, true);
+    } while (region != null && !region.write(slot(key), data));
+  }
+
+  public void invalidate(UUID world, long key) {
+    Region region;
+    do {
+      region = region(world, key, false);
+    } while (region != null && !region.invalidate(slot(key)));
+  }
+
+  @Nullable
+  private Region region(UUID world, long key, boolean create) {
+    if (closed) {
+      return null;
+    }
+
+    RegionPosition position = new RegionPosition(world, scale(key),
+        tileX(key) >> REGION_SHIFT, tileZ(key) >> REGION_SHIFT);
+    Region region;
+    List<Region> idle = null;
+    synchronized (regions) {
+      if (closed) {
+        return null;
+      }
+
+      region = regions.get(position);
+      if (region == null || (region == NO_FILE && create)) {
+        Path file = directory.resolve(Integer.toString(position.scale())).resolve(position.world().toString())
+            .resolve("r." + position.x() + "." + position.z() + ".tiles");
+        region = !create && !Files.exists(file) ? NO_FILE : Region.open(file);
+        regions.put(position, region);
+
+        Iterator<Region> iterator = regions.values().iterator();
+        while (regions.size() > MAX_OPEN_REGIONS) {
+          Region eldest = iterator.next();
+          iterator.remove();
+          if (idle == null) {
+            idle = new ArrayList<>();
+          }
+          idle.add(eldest);
+        }
+      }
+    }
+
+    // Flushing a region can take a while, so it happens outside the lock
+    if (idle != null) {
+      idle.forEach(this::closeQuietly);
+    }
+    return region != NO_FILE ? region : null;
+  }
+
+  private void closeQuietly(Region region) {
+    try {
+      region.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to close a map tile region", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    List<Region> open;
+    synchronized (regions) {
+      closed = true;
+      open = new ArrayList<>(regions.values());
+      regions.clear();
+    }
+
+    IOException failure = null;
+    for (Region region : open) {
+      try {
+        region.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private record RegionPosition(UUID world, int scale, int x, int z) {
+  }
+
+  private static final class Region {
+
+    @Nullable
+    private static final Object UNSAFE = unsafe();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private boolean closed;
+
+    private Region(FileChannel channel, MappedByteBuffer buffer) {
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+
+    private static Region open(Path file) {
+      try {
+        Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Region(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Nullable
+    private static Object unsafe() {
+      try {
+        Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        return field.get(null);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        return null;
+      }
+    }
+
+    // Releases the mapping right away instead of whenever the buffer is collected
+    private static void unmap(MappedByteBuffer buffer) {
+      if (UNSAFE == null) {
+        return;
+      }
+
+      try {
+        UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(UNSAFE, buffer);
+      } catch (ReflectiveOperationException | RuntimeException ignored) {
+        // Left to the garbage collector
+      }
+    }
+
+    private static int offset(int slot) {
+      return HEADER_SIZE + slot * TILE_SIZE;
+    }
+
+    private synchronized byte[] read(int slot) {
+      if (closed || buffer.getInt(slot * Integer.BYTES) != VALID_SLOT) {
+        return null;
+      }
+
+      byte[] data = new byte[TILE_SIZE];
+      buffer.get(offset(slot), data);
+      return data;
+    }
+
+    private synchronized boolean write(int slot, byte[] data) {
+      if (closed) {
+        return false;
+      }
+
+      buffer.put(offset(slot), data, 0, TILE_SIZE);
+      buffer.putInt(slot * Integer.BYTES, VALID_SLOT);
+      return true;
+    }
+
+    private synchronized boolean invalidate(int slot) {
+      if (closed) {
+        return false;
+      }
+
+      buffer.putInt(slot * Integer.BYTES, 0);
+      return true;
+    }
+
+    private synchronized void close() throws IOException {
+      if (closed || channel == null) {
+        return;
+      }
+
+      closed = true;
+      try {
+        buffer.force();
+      } finally {
+        channel.close();
+        unmap(buffer);
+      }
+    }
+  }
+}
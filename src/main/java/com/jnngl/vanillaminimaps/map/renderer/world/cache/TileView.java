@@ -0,0 +1,38 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+// Read access to the colors of a tile, in the same pixel order as the map data.
+public interface TileView {
+
+  int SIZE = 128 * 128;
+
+  byte get(int index);
+
+  void copyTo(int index, byte[] destination, int destinationIndex, int length);
+
+  default byte[] toArray() {
+    byte[] data = new byte[SIZE];
+    copyTo(0, data, 0, SIZE);
+    return data;
+  }
+
+  static TileView of(byte[] data) {
+    return new HeapTileView(data);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.jetbrains.annotations.Nullable;
+import org.joml.Vector4ic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+// Assigns compact int ids to viewers, so tile subscriptions can be stored as int lists.
+// Ids of released viewers are reused. Thread-safe.
+final class ViewerRegistry {
+
+  private final Map<UUID, Viewer> viewers = new HashMap<>();
+  private final IntArrayList freeIds = new IntArrayList();
+  private Viewer[] byId = new Viewer[16];
+  private int nextId;
+
+  synchronized Viewer acquire(UUID uuid) {
+    Viewer viewer = viewers.get(uuid);
+    if (viewer != null) {
+      return viewer;
+    }
+
+    int id = freeIds.isEmpty() ? nextId++ : freeIds.popInt();
+    if (id >= byId.length) {
+      byId = Arrays.copyOf(byId, byId.length * 2);
+    }
+
+    viewer = new Viewer(uuid, id);
+    viewers.put(uuid, viewer);
+    byId[id] = viewer;
+    return viewer;
+  }
+
+  @Nullable
+  synchronized Viewer get(UUID uuid) {
+    return viewers.get(uuid);
+  }
+
+  @Nullable
+  synchronized Viewer get(int id) {
+    return id < byId.length ? byId[id] : null;
+  }
+
+  synchronized void release(Viewer viewer) {
+    if (viewers.remove(viewer.uuid, viewer)) {
+      byId[viewer.id] = null;
+      freeIds.add(viewer.id);
+    }
+  }
+
+  static final class Viewer {
+
+    final UUID uuid;
+    final int id;
+    // Guarded by the viewer. Two sets are swapped on every update, so tracking new tiles doesn't allocate.
+    LongOpenHashSet tiles = new LongOpenHashSet();
+    LongOpenHashSet updatedTiles = new LongOpenHashSet();
+    volatile Consumer<Vector4ic> callback;
+
+    private Viewer(UUID uuid, int id) {
+      this.uuid = uuid;
+      this.id = id;
+    }
+  }
+}
@@ -17,62 +17,728 @@
 
 package com.jnngl.vanillaminimaps.map.renderer.world.cache;
 
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import com.jnngl.vanillaminimaps.VanillaMinimaps;
+import com.jnngl.vanillaminimaps.config.Config;
+import com.jnngl.vanillaminimaps.map.MinimapScale;
+import com.jnngl.vanillaminimaps.map.renderer.world.chunk.ChunkGrid;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.*;
-import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
 import lombok.Getter;
+import org.bukkit.Bukkit;
 import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
 import org.joml.Vector4i;
+import org.jetbrains.annotations.Nullable;
 import org.joml.Vector4ic;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
-@Getter
-@AllArgsConstructor
+// Tiles, pending renders and tile references are split into lock stripes by tile key, so the cache can be read
+// from any thread. Published tiles are immutable MapTile versions, readers never observe a partial update.
+// Capturing and block updates read the world and still have to happen on the main thread.
+// Tiles nobody views are kept for a while in case a viewer comes back, pinned tiles are kept forever.
+@RequiredArgsConstructor
 public class WorldMapCache<R extends CacheableWorldMinimapRenderer> {
 
-  private static final List<UUID> WORLD_SET = new ArrayList<>();
+  private static final Map<UUID, Integer> WORLD_IDS = new ConcurrentHashMap<>();
+  private static final Map<Integer, UUID> WORLD_UIDS = new ConcurrentHashMap<>();
+  private static final AtomicInteger NEXT_WORLD_ID = new AtomicInteger();
+  private static final MapTile PENDING_TILE = new MapTile(TileView.of(new byte[128 * 128]), null, 0);
+  // Must be a power of two
+  private static final int STRIPES = 16;
+  // Keeps a single sweep short when many tiles were released at once
+  private static final int COMPRESSIONS_PER_SWEEP = 64;
 
-  private final Long2ObjectMap<byte[]> cache = new Long2ObjectOpenHashMap<>();
-  private final Long2ObjectMap<Set<UUID>> refCounts = new Long2ObjectOpenHashMap<>();
-  private final Map<UUID, LongSet> viewers = new HashMap<>();
-  private final Map<UUID, Consumer<Vector4ic>> callbacks = new HashMap<>();
+  private final Stripe[] stripes = createStripes();
+  private final AtomicLong stamps = new AtomicLong();
+  private final MissingChunkTracker missingChunks = new MissingChunkTracker();
+  // Guarded by itself
+  private final Long2ObjectMap<MissingChunkTracker.WaitingTile> staleTiles = new Long2ObjectOpenHashMap<>();
+  private final ViewerRegistry viewers = new ViewerRegistry();
+  // Guarded by itself
+  private final Long2ObjectMap<DirtyArea> dirtyTiles = new Long2ObjectOpenHashMap<>();
+  private final AtomicLong residentBytes = new AtomicLong();
+  private final TileInterner interner = new TileInterner();
+  @Nullable
+  private final OffHeapTileAllocator allocator = Config.instance().tileCache.offHeap ? new OffHeapTileAllocator() : null;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  private final AtomicBoolean flushing = new AtomicBoolean();
+  private volatile List<PinnedRegion> pinnedRegions;
+  @Nullable
+  private volatile TileStore store;
+  @Getter
   private final R renderer;
 
+  private static Stripe[] createStripes() {
+    Stripe[] stripes = new Stripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+    return stripes;
+  }
+
+  static int stripeIndex(long key) {
+    return (int) HashCommon.mix(key) & (STRIPES - 1);
+  }
+
+  private Stripe stripe(long key) {
+    return stripes[stripeIndex(key)];
+  }
+
   public static long getKey(World world, int x, int z) {
-    int worldId = WORLD_SET.indexOf(world.getUID());
-    if (worldId == -1) {
-      worldId = WORLD_SET.size();
-      WORLD_SET.add(world.getUID());
+    return getKey(world, 1, x, z);
+  }
+
+  // Tiles of scale n sample every n-th column, x and z are in scaled coordinates (block coordinate / scale).
+  public static long getKey(World world, int scale, int x, int z) {
+    int worldId = WORLD_IDS.computeIfAbsent(world.getUID(), k -> {
+      int id = NEXT_WORLD_ID.getAndIncrement();
+      WORLD_UIDS.put(id, k);
+      return id;
+    });
+    return (long) worldId << 56 | (long) (scale - 1) << 52 | ((long) (z < 0 ? 1 : 0) << 51) | (long) (Math.abs(z) >> 7) << 26 | ((long) (x < 0 ? 1 : 0) << 25) | (Math.abs(x) >> 7);
+  }
+
+  private MapTile getCachedTile(long key) {
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      return getOrDecompress(stripe, key);
     }
-    return (long) worldId << 52 | ((long) (z < 0 ? 1 : 0) << 51) | (long) (Math.abs(z) >> 7) << 26 | ((long) (x < 0 ? 1 : 0) << 25) | (Math.abs(x) >> 7);
   }
 
-  public byte[] getCached(World world, int x, int z) {
-    int alignedX = (x >> 7) << 7;
-    int alignedZ = (z >> 7) << 7;
-    long key = getKey(world, alignedX, alignedZ);
-    return cache.get(key);
+  // Guarded by the stripe. Decompressed tiles have no heights, just like tiles loaded from the store.
+  private MapTile getOrDecompress(Stripe stripe, long key) {
+    MapTile tile = stripe.tiles.get(key);
+    if (tile != null) {
+      return tile;
+    }
+
+    byte[] compressed = stripe.coldTiles.remove(key);
+    if (compressed == null) {
+      return null;
+    }
+
+    interner.release(compressed);
+    tile = new MapTile(wrap(TileCompressor.decompress(compressed, 128 * 128)), null, stamps.incrementAndGet());
+    store(stripe, key, tile);
+    return tile;
   }
 
-  public byte[] get(World world, int x, int z) {
+  public MapTile getCachedTile(World world, int scale, int x, int z) {
+    return getCachedTile(getKey(world, scale, (x >> 7) << 7, (z >> 7) << 7));
+  }
+
+  public TileView getCached(World world, int x, int z) {
+    return getCached(world, 1, x, z);
+  }
+
+  public TileView getCached(World world, int scale, int x, int z) {
+    MapTile tile = getCachedTile(world, scale, x, z);
+    return tile != null ? tile.view() : null;
+  }
+
+  // Views are only valid until the end of the tick, copy from them right away.
+  public TileView get(World world, int x, int z) {
+    return get(world, 1, x, z);
+  }
+
+  public TileView get(World world, int scale, int x, int z) {
+    return getTile(world, scale, x, z).view();
+  }
+
+  // Returns an empty tile while the tile renders asynchronously.
+  public MapTile getTile(World world, int scale, int x, int z) {
     int alignedX = (x >> 7) << 7;
     int alignedZ = (z >> 7) << 7;
-    long key = getKey(world, alignedX, alignedZ);
-    return cache.computeIfAbsent(key, k -> {
-      byte[] data = new byte[128 * 128];
-      renderer.renderFully(world, alignedX - 64, alignedZ - 64, data);
-      return data;
-    });
+    long key = getKey(world, scale, alignedX, alignedZ);
+    MapTile cached = lookup(key);
+    if (cached != null) {
+      hits.increment();
+      return cached;
+    }
+
+    misses.increment();
+    TilePosition tile = new TilePosition(world, key, scale, alignedX, alignedZ);
+    TileStore store = this.store;
+    byte[] stored = store != null ? store.read(world.getUID(), key) : null;
+    if (stored != null) {
+      // Heights are not stored, block updates re-render the tile instead
+      return put(tile, stored, null, false);
+    }
+
+    if (renderer instanceof SnapshotWorldMinimapRenderer snapshotRenderer) {
+      TileRenderExecutor executor = VanillaMinimaps.get().tileRenderExecutor();
+      if (executor != null) {
+        renderAsync(snapshotRenderer, executor, tile);
+        return PENDING_TILE;
+      }
+
+      return renderSync(snapshotRenderer, tile);
+    }
+
+    return renderPlain(tile);
+  }
+
+  private MapTile renderPlain(TilePosition tile) {
+    byte[] data = new byte[128 * 128];
+    LongList missing = new LongArrayList();
+    renderer.renderCachedTile(tile.world(), tile.blockX(), tile.blockZ(), tile.scale(), data, missing);
+    MapTile rendered = put(tile, data, null, missing.isEmpty());
+    missingChunks.track(tile.world(), tile.key(), tile.scale(), tile.alignedX(), tile.alignedZ(), missing);
+    return rendered;
+  }
+
+  // Released tiles that are looked up again move to the back of the eviction order.
+  MapTile lookup(long key) {
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      MapTile tile = getOrDecompress(stripe, key);
+      if (tile != null && stripe.released.containsKey(key)) {
+        stripe.released.putAndMoveToLast(key, System.nanoTime());
+      }
+      return tile;
+    }
+  }
+
+  private MapTile put(TilePosition position, byte[] data, HeightPlane heights, boolean persist) {
+    TileStore store = this.store;
+    if (persist && store != null) {
+      store.write(position.world().getUID(), position.key(), data);
+    }
+
+    MapTile tile = new MapTile(wrap(data), heights, stamps.incrementAndGet());
+    boolean pinned = isPinned(position);
+    Stripe stripe = stripe(position.key());
+    synchronized (stripe) {
+      store(stripe, position.key(), tile);
+      if (pinned) {
+        stripe.pinned.add(position.key());
+      } else if (!stripe.subscribers.containsKey(position.key())) {
+        stripe.released.put(position.key(), System.nanoTime());
+      }
+    }
+
+    startSweeping();
+    evictOverBudget();
+    return tile;
+  }
+
+  private TileView wrap(byte[] data) {
+    return allocator != null ? allocator.allocate(data) : TileView.of(data);
+  }
+
+  private void free(MapTile tile) {
+    if (allocator != null) {
+      allocator.free(tile.view());
+    }
+  }
+
+  // Guarded by the stripe
+  private void store(Stripe stripe, long key, MapTile tile) {
+    MapTile previous = stripe.tiles.put(key, tile);
+    residentBytes.addAndGet(tile.sizeBytes() - (previous != null ? previous.sizeBytes() : 0));
+    if (previous != null) {
+      free(previous);
+    }
+  }
+
+  // Guarded by the stripe
+  private void remove(Stripe stripe, long key) {
+    MapTile previous = stripe.tiles.remove(key);
+    byte[] compressed = stripe.coldTiles.remove(key);
+    stripe.released.remove(key);
+    stripe.pinned.remove(key);
+    if (previous != null) {
+      residentBytes.addAndGet(-previous.sizeBytes());
+      free(previous);
+    }
+    if (compressed != null) {
+      interner.release(compressed);
+    }
+  }
+
+  // Publishes an updated copy of the tile, unless another version was published since it was read.
+  void replace(long key, MapTile expected, byte[] data, HeightPlane heights) {
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      if (stripe.tiles.get(key) == expected) {
+        store(stripe, key, new MapTile(wrap(data), heights, stamps.incrementAndGet()));
+      }
+    }
+  }
+
+  private MapTile renderSync(SnapshotWorldMinimapRenderer snapshotRenderer, TilePosition tile) {
+    ChunkGrid grid = snapshotRenderer.captureTile(tile.world(), tile.blockX(), tile.blockZ(), tile.scale(), false);
+    byte[] data = new byte[128 * 128];
+    HeightPlane heights = new HeightPlane();
+    snapshotRenderer.renderTile(grid, tile.blockX(), tile.blockZ(), tile.scale(), data, heights);
+    snapshotRenderer.completeTile(tile.world(), grid);
+    MapTile rendered = put(tile, data, heights, grid.getMissingChunks().isEmpty());
+    track(tile, grid);
+    return rendered;
+  }
+
+  private void renderAsync(SnapshotWorldMinimapRenderer snapshotRenderer, TileRenderExecutor executor, TilePosition tile) {
+    Stripe stripe = stripe(tile.key());
+    synchronized (stripe) {
+      if (stripe.pendingTiles.containsKey(tile.key())) {
+        return;
+      }
+
+      ChunkGrid grid = snapshotRenderer.captureTile(tile.world(), tile.blockX(), tile.blockZ(), tile.scale(), true);
+      CompletableFuture<RenderedTile> render = CompletableFuture.supplyAsync(() -> {
+        RenderedTile rendered = new RenderedTile(new byte[128 * 128], new HeightPlane());
+        snapshotRenderer.renderTile(grid, tile.blockX(), tile.blockZ(), tile.scale(), rendered.data(), rendered.heights());
+        return rendered;
+      }, executor.workers());
+
+      PendingTile pending = new PendingTile(render);
+      stripe.pendingTiles.put(tile.key(), pending);
+      render.thenAcceptAsync(rendered -> publish(snapshotRenderer, executor, tile, grid, pending, rendered),
+          executor.mainThread());
+    }
+  }
+
+  private void publish(SnapshotWorldMinimapRenderer snapshotRenderer, TileRenderExecutor executor, TilePosition tile,
+                       ChunkGrid grid, PendingTile pending, RenderedTile rendered) {
+    boolean dirty;
+    Stripe stripe = stripe(tile.key());
+    synchronized (stripe) {
+      if (!stripe.pendingTiles.remove(tile.key(), pending)) {
+        return;
+      }
+      dirty = pending.dirty;
+    }
+
+    snapshotRenderer.completeTile(tile.world(), grid);
+    if (!isReferenced(tile.key())) {
+      return;
+    }
+
+    put(tile, rendered.data(), rendered.heights(), grid.getMissingChunks().isEmpty());
+
+    track(tile, grid);
+    if (dirty) {
+      // Blocks changed after the snapshot was taken, keep the stale tile visible until the next render lands.
+      renderAsync(snapshotRenderer, executor, tile);
+    }
+
+    markDirty(tile.key(), tile.area());
+  }
+
+  private void track(TilePosition tile, ChunkGrid grid) {
+    missingChunks.track(tile.world(), tile.key(), tile.scale(), tile.alignedX(), tile.alignedZ(), grid.getMissingChunks());
+  }
+
+  public void invalidatePending(World world, int x, int z) {
+    invalidatePending(world, 1, x, z);
+  }
+
+  public void invalidatePending(World world, int scale, int x, int z) {
+    long key = getKey(world, scale, (x >> 7) << 7, (z >> 7) << 7);
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      PendingTile pending = stripe.pendingTiles.get(key);
+      if (pending != null) {
+        pending.dirty = true;
+      }
+    }
+  }
+
+  // Re-renders the tiles that were waiting for the chunk on the next tick, so a burst of loaded chunks
+  // only renders each tile once.
+  public void chunkLoaded(World world, int chunkX, int chunkZ) {
+    List<MissingChunkTracker.WaitingTile> tiles = missingChunks.chunkLoaded(world, chunkX, chunkZ);
+    if (tiles.isEmpty()) {
+      return;
+    }
+
+    boolean schedule;
+    synchronized (staleTiles) {
+      schedule = staleTiles.isEmpty();
+      tiles.forEach(tile -> staleTiles.put(tile.key(), tile));
+    }
+
+    if (schedule) {
+      Bukkit.getScheduler().runTask(VanillaMinimaps.get(), this::refreshStaleTiles);
+    }
+  }
+
+  private void refreshStaleTiles() {
+    List<MissingChunkTracker.WaitingTile> tiles;
+    synchronized (staleTiles) {
+      tiles = List.copyOf(staleTiles.values());
+      staleTiles.clear();
+    }
+
+    TileRenderExecutor executor = VanillaMinimaps.get().tileRenderExecutor();
+    for (MissingChunkTracker.WaitingTile waiting : tiles) {
+      World world = Bukkit.getWorld(waiting.world());
+      if (world == null || !isReferenced(waiting.key())) {
+        // Nobody views the tile, drop it so it renders with the loaded chunks next time
+        evict(waiting.key(), false);
+        continue;
+      }
+
+      TilePosition tile = new TilePosition(world, waiting.key(), waiting.scale(), waiting.alignedX(), waiting.alignedZ());
+      if (!(renderer instanceof SnapshotWorldMinimapRenderer snapshotRenderer)) {
+        renderPlain(tile);
+        notifyTileViewers(tile.key(), tile.area());
+      } else {
+        rerender(snapshotRenderer, executor, tile);
+      }
+    }
+  }
+
+  private void rerender(SnapshotWorldMinimapRenderer snapshotRenderer, TileRenderExecutor executor, TilePosition tile) {
+    if (executor != null) {
+      invalidatePending(tile.key());
+      renderAsync(snapshotRenderer, executor, tile);
+    } else {
+      renderSync(snapshotRenderer, tile);
+      markDirty(tile.key(), tile.area());
+    }
+  }
+
+  private boolean isReferenced(long key) {
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.subscribers.containsKey(key);
+    }
+  }
+
+  private void invalidatePending(long key) {
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      PendingTile pending = stripe.pendingTiles.get(key);
+      if (pending != null) {
+        pending.dirty = true;
+      }
+    }
+  }
+
+  // Updates the pixel of the changed column in the tiles of the current minimap scale. Columns between
+  // the sampled ones of a scaled tile are not displayed, so changes there are ignored.
+  public void updateColumn(Block block) {
+    renderer.blockChanged(block);
+
+    int scale = MinimapScale.get();
+    if (Math.floorMod(block.getX(), scale) != 0 || Math.floorMod(block.getZ(), scale) != 0) {
+      return;
+    }
+
+    World world = block.getWorld();
+    int x = block.getX() / scale + 64;
+    int z = block.getZ() / scale + 64;
+    invalidatePending(world, scale, x, z);
+    long key = getKey(world, scale, (x >> 7) << 7, (z >> 7) << 7);
+    invalidateStored(world, key);
+    MapTile tile = getCachedTile(key);
+
+    if (renderer instanceof SnapshotWorldMinimapRenderer snapshotRenderer) {
+      // The pixel south of the column is shaded from its height and may belong to the next tile
+      invalidatePending(world, scale, x, z + 1);
+      long southKey = getKey(world, scale, (x >> 7) << 7, ((z + 1) >> 7) << 7);
+      boolean sameTile = southKey == key;
+      if (!sameTile) {
+        invalidateStored(world, southKey);
+      }
+
+      tile = withHeights(snapshotRenderer, new TilePosition(world, key, scale, (x >> 7) << 7, (z >> 7) << 7), tile);
+      MapTile southTile = sameTile ? tile : withHeights(snapshotRenderer,
+          new TilePosition(world, southKey, scale, (x >> 7) << 7, ((z + 1) >> 7) << 7), getCachedTile(southKey));
+      if (tile == null && southTile == null) {
+        return;
+      }
+
+      byte[] data = tile != null ? tile.view().toArray() : null;
+      HeightPlane heights = tile != null ? tile.heights().copy() : null;
+      byte[] southData = sameTile ? data : southTile != null ? southTile.view().toArray() : null;
+      HeightPlane southHeights = sameTile ? heights : southTile != null ? southTile.heights().copy() : null;
+      snapshotRenderer.updateColumn(block, x & 127, z & 127, data, heights, southData, southHeights);
+      if (tile != null) {
+        replace(key, tile, data, heights);
+      }
+      if (!sameTile && southTile != null) {
+        replace(southKey, southTile, southData, southHeights);
+      }
+    } else if (tile != null) {
+      byte[] data = tile.view().toArray();
+      renderer.updateBlock(block, (127 - (z & 127)) * 128 + (127 - (x & 127)), data);
+      replace(key, tile, data, null);
+    }
+  }
+
+  // Tiles loaded from the store have no heights to update a column with, they are rendered again instead.
+  private MapTile withHeights(SnapshotWorldMinimapRenderer snapshotRenderer, TilePosition tile, MapTile cached) {
+    if (cached == null || cached.heights() != null) {
+      return cached;
+    }
+
+    if (isReferenced(tile.key())) {
+      rerender(snapshotRenderer, VanillaMinimaps.get().tileRenderExecutor(), tile);
+    } else {
+      evict(tile.key(), false);
+    }
+    return null;
+  }
+
+  private void invalidateStored(World world, long key) {
+    TileStore store = this.store;
+    if (store != null) {
+      store.invalidate(world.getUID(), key);
+    }
   }
 
   public void invalidate(World world, int x, int z) {
-    cache.remove(getKey(world, x, z));
+    long key = getKey(world, x, z);
+    invalidateStored(world, key);
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      remove(stripe, key);
+    }
+    missingChunks.release(key);
+  }
+
+  // Tiles that were rendered with all of their chunks are written back to the store.
+  void evict(long key, boolean writeBack) {
+    MapTile removed = null;
+    byte[] compressed = null;
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      if (!stripe.subscribers.containsKey(key)) {
+        removed = stripe.tiles.get(key);
+        compressed = stripe.coldTiles.get(key);
+        remove(stripe, key);
+      }
+    }
+
+    if (removed != null || compressed != null) {
+      evictions.increment();
+      if (writeBack) {
+        writeBack(key, removed, compressed);
+      }
+    }
+    missingChunks.release(key);
+  }
+
+  private void writeBack(long key, MapTile tile, byte[] compressed) {
+    TileStore store = this.store;
+    if (store != null && missingChunks.isComplete(key)) {
+      byte[] data = tile != null ? tile.view().toArray() : TileCompressor.decompress(compressed, 128 * 128);
+      store.write(WORLD_UIDS.get((int) (key >>> 56)), key, data);
+    }
   }
 
-  protected void addViewer(long key, UUID viewer) {
-    viewers.computeIfAbsent(viewer, k -> new LongOpenHashSet()).add(key);
-    refCounts.computeIfAbsent(key, k -> new HashSet<>()).add(viewer);
+  public void setTileStore(@Nullable TileStore store) {
+    this.store = store;
+  }
+
+  // Writes all cached tiles to the store, e.g. before it is closed.
+  public void flush() {
+    if (store == null) {
+      return;
+    }
+
+    Long2ObjectMap<MapTile> tiles = new Long2ObjectOpenHashMap<>();
+    Long2ObjectMap<byte[]> coldTiles = new Long2ObjectOpenHashMap<>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        tiles.putAll(stripe.tiles);
+        coldTiles.putAll(stripe.coldTiles);
+      }
+    }
+    tiles.forEach((key, tile) -> writeBack(key, tile, null));
+    coldTiles.forEach((key, compressed) -> writeBack(key, null, compressed));
+  }
+
+  private void startSweeping() {
+    VanillaMinimaps plugin = VanillaMinimaps.get();
+    if (plugin != null && plugin.isEnabled() && sweeping.compareAndSet(false, true)) {
+      Bukkit.getScheduler().runTaskTimer(plugin, this::sweep, 20, 20);
+    }
+  }
+
+  // Evicts released tiles after their keep-alive time, compresses the ones that stayed idle for a while,
+  // then evicts the oldest released tiles while over the budget.
+  private void sweep() {
+    Config.TileCache config = Config.instance().tileCache;
+    long now = System.nanoTime();
+    long deadline = now - TimeUnit.SECONDS.toNanos(config.keepAliveSeconds);
+    long compressDeadline = now - TimeUnit.SECONDS.toNanos(config.compressAfterSeconds);
+    LongList expired = new LongArrayList();
+    Long2ObjectMap<MapTile> idle = new Long2ObjectOpenHashMap<>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        LongIterator iterator = stripe.released.keySet().iterator();
+        while (iterator.hasNext()) {
+          long key = iterator.nextLong();
+          long released = stripe.released.get(key);
+          if (released - deadline <= 0) {
+            expired.add(key);
+          } else if (released - compressDeadline > 0) {
+            // Release times are in insertion order
+            break;
+          } else if (idle.size() < COMPRESSIONS_PER_SWEEP) {
+            MapTile tile = stripe.tiles.get(key);
+            if (tile != null) {
+              idle.put(key, tile);
+            }
+          }
+        }
+      }
+    }
+
+    expired.forEach(key -> evict(key, true));
+    idle.forEach(this::compress);
+    evictOverBudget();
+    if (allocator != null) {
+      allocator.reclaim();
+    }
+  }
+
+  private void compress(long key, MapTile tile) {
+    byte[] compressed = TileCompressor.compress(tile.view().toArray());
+    if (compressed.length >= TileView.SIZE) {
+      return;
+    }
+
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      // The tile could have been updated or viewed again in the meantime
+      if (stripe.tiles.get(key) != tile || !stripe.released.containsKey(key)) {
+        return;
+      }
+
+      stripe.tiles.remove(key);
+      residentBytes.addAndGet(-tile.sizeBytes());
+      free(tile);
+      stripe.coldTiles.put(key, interner.intern(compressed));
+    }
+  }
+
+  // Tiles that are displayed or pinned can't be evicted, so the budget may still be exceeded.
+  private void evictOverBudget() {
+    long budget = Config.instance().tileCache.memoryBudgetMegabytes * 1024L * 1024L;
+    while (residentBytes.get() + interner.bytes() > budget) {
+      long oldestKey = 0;
+      long oldestTime = 0;
+      boolean found = false;
+      for (Stripe stripe : stripes) {
+        synchronized (stripe) {
+          if (stripe.released.isEmpty()) {
+            continue;
+          }
+
+          long key = stripe.released.firstLongKey();
+          long time = stripe.released.get(key);
+          if (!found || time - oldestTime < 0) {
+            oldestKey = key;
+            oldestTime = time;
+            found = true;
+          }
+        }
+      }
+
+      if (!found) {
+        return;
+      }
+
+      evict(oldestKey, true);
+    }
+  }
+
+  private boolean isPinned(TilePosition tile) {
+    List<PinnedRegion> regions = pinnedRegions;
+    if (regions == null) {
+      regions = PinnedRegion.parse(Config.instance().tileCache.pinnedRegions);
+      pinnedRegions = regions;
+    }
+
+    for (PinnedRegion region : regions) {
+      if (region.intersects(tile)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public TileCacheStats stats() {
+    int tiles = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        tiles += stripe.tiles.size() + stripe.coldTiles.size();
+      }
+    }
+    return new TileCacheStats(hits.sum(), misses.sum(), evictions.sum(), tiles, residentBytes.get() + interner.bytes());
+  }
+
+  private void addReference(long key, int viewer) {
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      IntArrayList subscribers = stripe.subscribers.get(key);
+      if (subscribers == null) {
+        subscribers = new IntArrayList(2);
+        stripe.subscribers.put(key, subscribers);
+      }
+
+      if (!subscribers.contains(viewer)) {
+        subscribers.add(viewer);
+      }
+      stripe.released.remove(key);
+    }
+  }
+
+  private void removeReference(long key, int viewer) {
+    PendingTile cancelled;
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      IntArrayList subscribers = stripe.subscribers.get(key);
+      if (subscribers == null || !subscribers.rem(viewer) || !subscribers.isEmpty()) {
+        return;
+      }
+
+      stripe.subscribers.remove(key);
+      if ((stripe.tiles.containsKey(key) || stripe.coldTiles.containsKey(key)) && !stripe.pinned.contains(key)) {
+        stripe.released.put(key, System.nanoTime());
+      }
+      cancelled = stripe.pendingTiles.remove(key);
+    }
+
+    if (cancelled != null) {
+      cancelled.future.cancel(false);
+      if (getCachedTile(key) == null) {
+        missingChunks.release(key);
+      }
+    }
+    evictOverBudget();
+  }
+
+  protected void addViewer(long key, UUID uuid) {
+    ViewerRegistry.Viewer viewer = viewers.acquire(uuid);
+    synchronized (viewer) {
+      if (viewer.tiles.add(key)) {
+        addReference(key, viewer.id);
+      }
+    }
   }
 
   public void addViewer(World world, int x, int z, UUID viewer) {
@@ -80,24 +746,19 @@ public class WorldMapCache<R extends CacheableWorldMinimapRenderer> {
   }
 
   public void setCallback(UUID viewer, Consumer<Vector4ic> callback) {
-    callbacks.put(viewer, callback);
+    viewers.acquire(viewer).callback = callback;
   }
 
-  protected void removeViewer(long key, UUID viewer) {
-    LongSet tracked = viewers.get(viewer);
-    if (tracked != null) {
-      tracked.remove(key);
-    }
-
-    Set<UUID> viewers = refCounts.get(key);
-    if (viewers == null) {
+  protected void removeViewer(long key, UUID uuid) {
+    ViewerRegistry.Viewer viewer = viewers.get(uuid);
+    if (viewer == null) {
       return;
     }
 
-    viewers.remove(viewer);
-    if (viewers.isEmpty()) {
-      refCounts.remove(key);
-      cache.remove(key);
+    synchronized (viewer) {
+      if (viewer.tiles.remove(key)) {
+        removeReference(key, viewer.id);
+      }
     }
   }
 
@@ -105,50 +766,255 @@ public class WorldMapCache<R extends CacheableWorldMinimapRenderer> {
     removeViewer(getKey(world, x, z), viewer);
   }
 
-  public void releaseViewer(UUID viewer) {
-    callbacks.remove(viewer);
-    LongSet tracked = viewers.remove(viewer);
-    if (tracked == null) {
+  public void releaseViewer(UUID uuid) {
+    ViewerRegistry.Viewer viewer = viewers.get(uuid);
+    if (viewer == null) {
       return;
     }
 
-    tracked.forEach(key -> removeViewer(key, viewer));
+    viewer.callback = null;
+    synchronized (viewer) {
+      for (LongIterator iterator = viewer.tiles.iterator(); iterator.hasNext(); ) {
+        removeReference(iterator.nextLong(), viewer.id);
+      }
+      viewer.tiles.clear();
+    }
+    // The id is only reused once no tile refers to it anymore
+    viewers.release(viewer);
   }
 
-  public void setViewerChunks(UUID viewer, LongCollection keys) {
-    LongSet tracked = viewers.get(viewer);
-    viewers.put(viewer, new LongOpenHashSet());
-    keys.forEach(key -> addViewer(key, viewer));
-    if (tracked != null) {
-      tracked.forEach(key -> {
-        if (!keys.contains(key)) {
-          removeViewer(key, viewer);
+  public void setViewerChunks(UUID uuid, LongCollection keys) {
+    ViewerRegistry.Viewer viewer = viewers.acquire(uuid);
+    synchronized (viewer) {
+      LongOpenHashSet updated = viewer.updatedTiles;
+      updated.clear();
+      updated.addAll(keys);
+      for (LongIterator iterator = updated.iterator(); iterator.hasNext(); ) {
+        long key = iterator.nextLong();
+        if (!viewer.tiles.contains(key)) {
+          addReference(key, viewer.id);
+        }
+      }
+      for (LongIterator iterator = viewer.tiles.iterator(); iterator.hasNext(); ) {
+        long key = iterator.nextLong();
+        if (!updated.contains(key)) {
+          removeReference(key, viewer.id);
         }
-      });
+      }
+
+      viewer.updatedTiles = viewer.tiles;
+      viewer.tiles = updated;
     }
   }
 
-  public void notifyDirtyArea(UUID viewer, Vector4i area) {
-    Consumer<Vector4ic> callback = callbacks.get(viewer);
+  public void notifyDirtyArea(UUID uuid, Vector4i area) {
+    ViewerRegistry.Viewer viewer = viewers.get(uuid);
+    if (viewer != null) {
+      notifyDirtyArea(viewer, area);
+    }
+  }
+
+  private void notifyDirtyArea(ViewerRegistry.Viewer viewer, Vector4i area) {
+    Consumer<Vector4ic> callback = viewer.callback;
     if (callback != null) {
       callback.accept(area);
     }
   }
 
+  private void collectViewers(long key, IntArrayList into) {
+    Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      IntArrayList subscribers = stripe.subscribers.get(key);
+      if (subscribers != null) {
+        into.addAll(subscribers);
+      }
+    }
+  }
+
   public void notifyDirtyArea(World world, Vector4i area) {
-    int startX = (area.x() >> 7) << 7;
-    int startZ = (area.y() >> 7) << 7;
-    int endX = ((area.x() + area.z()) >> 7) << 7;
-    int endZ = ((area.y() + area.w()) >> 7) << 7;
-    Set<UUID> allViewers = new HashSet<>();
+    // Tile of aligned coordinate A covers A - 64 to A + 63
+    int scale = MinimapScale.get();
+    int startX = ((Math.floorDiv(area.x(), scale) + 64) >> 7) << 7;
+    int startZ = ((Math.floorDiv(area.y(), scale) + 64) >> 7) << 7;
+    int endX = ((Math.floorDiv(area.x() + area.z(), scale) + 64) >> 7) << 7;
+    int endZ = ((Math.floorDiv(area.y() + area.w(), scale) + 64) >> 7) << 7;
     for (int x = startX; x <= endX; x += 128) {
       for (int z = startZ; z <= endZ; z += 128) {
-        Set<UUID> viewers = refCounts.get(getKey(world, x, z));
-        if (viewers != null) {
-          allViewers.addAll(viewers);
+        markDirty(getKey(world, scale, x, z), area);
+      }
+    }
+  }
+
+  // Damage is collected per tile and flushed at the end of the tick, so a burst of block changes
+  // notifies each viewer once with the union of the areas, without waiting for the next tick.
+  private void markDirty(long key, Vector4ic area) {
+    startFlushing();
+    synchronized (dirtyTiles) {
+      DirtyArea dirty = dirtyTiles.get(key);
+      if (dirty != null) {
+        dirty.add(area);
+      } else {
+        dirtyTiles.put(key, new DirtyArea(area));
+      }
+    }
+  }
+
+  private void startFlushing() {
+    VanillaMinimaps plugin = VanillaMinimaps.get();
+    if (plugin != null && plugin.isEnabled() && flushing.compareAndSet(false, true)) {
+      Bukkit.getPluginManager().registerEvent(ServerTickEndEvent.class, new Listener() {}, EventPriority.MONITOR,
+          (listener, event) -> flushDirtyAreas(), plugin);
+    }
+  }
+
+  private void flushDirtyAreas() {
+    Long2ObjectMap<DirtyArea> tiles;
+    synchronized (dirtyTiles) {
+      if (dirtyTiles.isEmpty()) {
+        return;
+      }
+
+      tiles = new Long2ObjectOpenHashMap<>(dirtyTiles);
+      dirtyTiles.clear();
+    }
+
+    Int2ObjectMap<DirtyArea> merged = new Int2ObjectOpenHashMap<>();
+    IntArrayList ids = new IntArrayList();
+    for (Long2ObjectMap.Entry<DirtyArea> tile : tiles.long2ObjectEntrySet()) {
+      ids.clear();
+      collectViewers(tile.getLongKey(), ids);
+      for (int i = 0; i < ids.size(); i++) {
+        DirtyArea area = merged.get(ids.getInt(i));
+        if (area != null) {
+          area.add(tile.getValue());
+        } else {
+          merged.put(ids.getInt(i), tile.getValue().copy());
         }
       }
     }
-    allViewers.forEach(viewer -> notifyDirtyArea(viewer, area));
+
+    for (Int2ObjectMap.Entry<DirtyArea> entry : merged.int2ObjectEntrySet()) {
+      ViewerRegistry.Viewer viewer = viewers.get(entry.getIntKey());
+      if (viewer != null) {
+        notifyDirtyArea(viewer, entry.getValue().toVector());
+      }
+    }
+  }
+
+  private record TilePosition(World world, long key, int scale, int alignedX, int alignedZ) {
+
+    private int blockX() {
+      return (alignedX - 64) * scale;
+    }
+
+    private int blockZ() {
+      return (alignedZ - 64) * scale;
+    }
+
+    private Vector4i area() {
+      return new Vector4i(blockX(), blockZ(), 128 * scale, 128 * scale);
+    }
+  }
+
+  private record RenderedTile(byte[] data, HeightPlane heights) {
+  }
+
+  // Union of dirty areas, in block coordinates
+  private static final class DirtyArea {
+
+    private int minX;
+    private int minZ;
+    private int maxX;
+    private int maxZ;
+
+    private DirtyArea(int minX, int minZ, int maxX, int maxZ) {
+      this.minX = minX;
+      this.minZ = minZ;
+      this.maxX = maxX;
+      this.maxZ = maxZ;
+    }
+
+    private DirtyArea(Vector4ic area) {
+      this(area.x(), area.y(), area.x() + area.z(), area.y() + area.w());
+    }
+
+    private void add(Vector4ic area) {
+      minX = Math.min(minX, area.x());
+      minZ = Math.min(minZ, area.y());
+      maxX = Math.max(maxX, area.x() + area.z());
+      maxZ = Math.max(maxZ, area.y() + area.w());
+    }
+
+    private void add(DirtyArea area) {
+      minX = Math.min(minX, area.minX);
+      minZ = Math.min(minZ, area.minZ);
+      maxX = Math.max(maxX, area.maxX);
+      maxZ = Math.max(maxZ, area.maxZ);
+    }
+
+    private DirtyArea copy() {
+      return new DirtyArea(minX, minZ, maxX, maxZ);
+    }
+
+    private Vector4i toVector() {
+      return new Vector4i(minX, minZ, maxX - minX, maxZ - minZ);
+    }
+  }
+
+  // Block coordinates, inclusive
+  private record PinnedRegion(String world, int minX, int minZ, int maxX, int maxZ) {
+
+    private static List<PinnedRegion> parse(List<String> regions) {
+      List<PinnedRegion> parsed = new ArrayList<>();
+      for (String region : regions) {
+        String[] parts = region.split(":");
+        if (parts.length != 5) {
+          VanillaMinimaps.get().getLogger().warning("Invalid pinned region: " + region);
+          continue;
+        }
+
+        try {
+          int x1 = Integer.parseInt(parts[1].trim());
+          int z1 = Integer.parseInt(parts[2].trim());
+          int x2 = Integer.parseInt(parts[3].trim());
+          int z2 = Integer.parseInt(parts[4].trim());
+          parsed.add(new PinnedRegion(parts[0].trim(), Math.min(x1, x2), Math.min(z1, z2), Math.max(x1, x2), Math.max(z1, z2)));
+        } catch (NumberFormatException e) {
+          VanillaMinimaps.get().getLogger().warning("Invalid pinned region: " + region);
+        }
+      }
+      return List.copyOf(parsed);
+    }
+
+    private boolean intersects(TilePosition tile) {
+      int size = 128 * tile.scale();
+      return world.equals(tile.world().getName())
+          && tile.blockX() <= maxX && tile.blockX() + size > minX
+          && tile.blockZ() <= maxZ && tile.blockZ() + size > minZ;
+    }
+  }
+
+  private static final class Stripe {
+
+    private final Long2ObjectMap<MapTile> tiles = new Long2ObjectOpenHashMap<>();
+    // Compressed idle tiles, interned
+    private final Long2ObjectMap<byte[]> coldTiles = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectMap<PendingTile> pendingTiles = new Long2ObjectOpenHashMap<>();
+    // Ids of the viewers of each tile
+    private final Long2ObjectMap<IntArrayList> subscribers = new Long2ObjectOpenHashMap<>();
+    // Cached tiles without viewers and their release time, oldest first
+    private final Long2LongLinkedOpenHashMap released = new Long2LongLinkedOpenHashMap();
+    private final LongSet pinned = new LongOpenHashSet();
+  }
+
+  // Guarded by the stripe of its tile
+  private static final class PendingTile {
+
+    private final CompletableFuture<RenderedTile> future;
+    private boolean dirty;
+
+    private PendingTile(CompletableFuture<RenderedTile> future) {
+      this.future = future;
+    }
   }
 }
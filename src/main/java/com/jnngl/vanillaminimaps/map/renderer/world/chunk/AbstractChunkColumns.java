@@ -0,0 +1,79 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.chunk;
+
+import com.jnngl.vanillaminimaps.config.BlockColorTable;
+import com.jnngl.vanillaminimaps.config.BlockConfig;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+public abstract class AbstractChunkColumns implements ChunkColumns {
+
+  private static final byte UNKNOWN = 0;
+  private static final byte TRANSPARENT = 1;
+  private static final byte OPAQUE = 2;
+
+  private final int minSectionY;
+  private final byte[] sectionFlags;
+
+  protected AbstractChunkColumns(int minSectionY, int sectionCount) {
+    this.minSectionY = minSectionY;
+    this.sectionFlags = new byte[sectionCount];
+  }
+
+  // Returns null for sections that only contain air.
+  protected abstract PalettedContainer<BlockState> section(int index);
+
+  private static boolean hasMapColor(BlockState state) {
+    return !BlockColorTable.isTransparent(BlockConfig.instance().getColorTable().entry(state));
+  }
+
+  @Override
+  public BlockState getBlockState(int x, int y, int z) {
+    int index = SectionPos.blockToSectionCoord(y) - minSectionY;
+    if (index < 0 || index >= sectionFlags.length) {
+      return Blocks.AIR.defaultBlockState();
+    }
+
+    PalettedContainer<BlockState> section = section(index);
+    if (section == null) {
+      return Blocks.AIR.defaultBlockState();
+    }
+
+    return section.get(x & 15, y & 15, z & 15);
+  }
+
+  @Override
+  public boolean isSectionTransparent(int y) {
+    int index = SectionPos.blockToSectionCoord(y) - minSectionY;
+    if (index < 0 || index >= sectionFlags.length) {
+      return true;
+    }
+
+    byte flags = sectionFlags[index];
+    if (flags == UNKNOWN) {
+      PalettedContainer<BlockState> section = section(index);
+      flags = section == null || !section.maybeHas(AbstractChunkColumns::hasMapColor) ? TRANSPARENT : OPAQUE;
+      sectionFlags[index] = flags;
+    }
+
+    return flags == TRANSPARENT;
+  }
+}
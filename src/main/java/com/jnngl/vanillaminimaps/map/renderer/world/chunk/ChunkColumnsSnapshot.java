@@ -0,0 +1,80 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.chunk;
+
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraft.world.level.levelgen.Heightmap;
+
+// Immutable copy of the data the column samplers read, safe to use off the main thread.
+public final class ChunkColumnsSnapshot extends AbstractChunkColumns {
+
+  private final PalettedContainer<BlockState>[] sections;
+  private final int[] surfaceHeights;
+  private final int[] oceanFloorHeights;
+
+  private ChunkColumnsSnapshot(int minSectionY, PalettedContainer<BlockState>[] sections, int[] surfaceHeights,
+                               int[] oceanFloorHeights) {
+    super(minSectionY, sections.length);
+    this.sections = sections;
+    this.surfaceHeights = surfaceHeights;
+    this.oceanFloorHeights = oceanFloorHeights;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static ChunkColumnsSnapshot copyOf(LevelChunk chunk) {
+    LevelChunkSection[] chunkSections = chunk.getSections();
+    PalettedContainer<BlockState>[] sections = new PalettedContainer[chunkSections.length];
+    for (int i = 0; i < chunkSections.length; i++) {
+      LevelChunkSection section = chunkSections[i];
+      if (section != null && !section.hasOnlyAir()) {
+        sections[i] = section.getStates().copy();
+      }
+    }
+
+    int[] surfaceHeights = new int[16 * 16];
+    int[] oceanFloorHeights = new int[16 * 16];
+    for (int z = 0; z < 16; z++) {
+      for (int x = 0; x < 16; x++) {
+        surfaceHeights[z << 4 | x] = chunk.getHeight(Heightmap.Types.WORLD_SURFACE, x, z);
+        oceanFloorHeights[z << 4 | x] = chunk.getHeight(Heightmap.Types.OCEAN_FLOOR, x, z);
+      }
+    }
+
+    int minSectionY = SectionPos.blockToSectionCoord(chunk.getLevel().getMinY());
+    return new ChunkColumnsSnapshot(minSectionY, sections, surfaceHeights, oceanFloorHeights);
+  }
+
+  @Override
+  protected PalettedContainer<BlockState> section(int index) {
+    return sections[index];
+  }
+
+  @Override
+  public int getSurfaceHeight(int x, int z) {
+    return surfaceHeights[(z & 15) << 4 | (x & 15)];
+  }
+
+  @Override
+  public int getOceanFloorHeight(int x, int z) {
+    return oceanFloorHeights[(z & 15) << 4 | (x & 15)];
+  }
+}
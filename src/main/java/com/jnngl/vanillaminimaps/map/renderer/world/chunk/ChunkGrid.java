@@ -0,0 +1,161 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.chunk;
+
+import com.jnngl.vanillaminimaps.map.renderer.world.ColumnSampler;
+import com.jnngl.vanillaminimaps.map.renderer.world.cache.ColumnSummaryCache;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import lombok.AccessLevel;
+import lombok.Getter;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.chunk.LevelChunk;
+
+@Getter
+public final class ChunkGrid {
+
+  // Returned by sample for columns of chunks that were not captured
+  public static final long MISSING = Long.MIN_VALUE;
+
+  private final int minChunkX;
+  private final int minChunkZ;
+  private final int width;
+  private final int depth;
+  private final int minY;
+  @Getter(AccessLevel.NONE)
+  private final boolean hasCeiling;
+  private final long stamp;
+  @Getter(AccessLevel.NONE)
+  private final ChunkColumns[] chunks;
+  @Getter(AccessLevel.NONE)
+  private final long[][] summaries;
+  @Getter(AccessLevel.NONE)
+  private final boolean[] computed;
+  private final LongList missingChunks = new LongArrayList();
+
+  private ChunkGrid(int minChunkX, int minChunkZ, int width, int depth, int minY, boolean hasCeiling, long stamp) {
+    this.minChunkX = minChunkX;
+    this.minChunkZ = minChunkZ;
+    this.width = width;
+    this.depth = depth;
+    this.minY = minY;
+    this.hasCeiling = hasCeiling;
+    this.stamp = stamp;
+    this.chunks = new ChunkColumns[width * depth];
+    this.summaries = new long[width * depth][];
+    this.computed = new boolean[width * depth];
+  }
+
+  // Collects the chunks covering the given block area (inclusive). Chunks that already have a cached column
+  // summary are not touched at all. With snapshot set, the remaining chunks are copied, so the grid can be
+  // sampled from any thread. Unless loadChunks is set, chunks that are not loaded are skipped and listed
+  // in missingChunks. Must be called on the main thread.
+  public static ChunkGrid capture(Level level, ColumnSummaryCache summaryCache, int minBlockX, int minBlockZ,
+                                  int maxBlockX, int maxBlockZ, boolean snapshot, boolean loadChunks) {
+    int minChunkX = SectionPos.blockToSectionCoord(minBlockX);
+    int minChunkZ = SectionPos.blockToSectionCoord(minBlockZ);
+    int width = SectionPos.blockToSectionCoord(maxBlockX) - minChunkX + 1;
+    int depth = SectionPos.blockToSectionCoord(maxBlockZ) - minChunkZ + 1;
+    ChunkGrid grid = new ChunkGrid(minChunkX, minChunkZ, width, depth, level.getMinY(),
+        level.dimensionType().hasCeiling(), summaryCache.stamp());
+
+    for (int z = 0; z < depth; z++) {
+      for (int x = 0; x < width; x++) {
+        int index = z * width + x;
+        long[] summary = summaryCache.get(level.getWorld(), minChunkX + x, minChunkZ + z);
+        if (summary != null) {
+          grid.summaries[index] = summary;
+          continue;
+        }
+
+        LevelChunk chunk = loadChunks
+            ? level.getChunk(minChunkX + x, minChunkZ + z)
+            : level.getChunkIfLoaded(minChunkX + x, minChunkZ + z);
+        if (chunk == null) {
+          grid.missingChunks.add(ChunkPos.asLong(minChunkX + x, minChunkZ + z));
+          continue;
+        }
+
+        if (chunk.isEmpty()) {
+          continue;
+        }
+
+        grid.chunks[index] = snapshot ? ChunkColumnsSnapshot.copyOf(chunk) : new LiveChunkColumns(chunk);
+      }
+    }
+
+    return grid;
+  }
+
+  public boolean hasCeiling() {
+    return hasCeiling;
+  }
+
+  public ColumnSampler createSampler() {
+    return new ColumnSampler(minY, hasCeiling);
+  }
+
+  // Returns the column summary of the chunk containing the given block, computing it on first access.
+  public long[] summary(ColumnSampler sampler, int worldX, int worldZ) {
+    int x = SectionPos.blockToSectionCoord(worldX) - minChunkX;
+    int z = SectionPos.blockToSectionCoord(worldZ) - minChunkZ;
+    if (x < 0 || z < 0 || x >= width || z >= depth) {
+      return null;
+    }
+
+    int index = z * width + x;
+    long[] summary = summaries[index];
+    if (summary == null && chunks[index] != null) {
+      summary = sampler.summarize(chunks[index], minChunkX + x, minChunkZ + z);
+      summaries[index] = summary;
+      computed[index] = true;
+      chunks[index] = null;
+    }
+
+    return summary;
+  }
+
+  // Samples a single column. With summarize set the whole chunk is summarized on first access, otherwise
+  // the column is sampled directly unless a summary is already available.
+  public long sample(ColumnSampler sampler, int worldX, int worldZ, boolean summarize) {
+    if (summarize) {
+      long[] summary = summary(sampler, worldX, worldZ);
+      return summary != null ? summary[(worldZ & 15) << 4 | (worldX & 15)] : MISSING;
+    }
+
+    int x = SectionPos.blockToSectionCoord(worldX) - minChunkX;
+    int z = SectionPos.blockToSectionCoord(worldZ) - minChunkZ;
+    if (x < 0 || z < 0 || x >= width || z >= depth) {
+      return MISSING;
+    }
+
+    int index = z * width + x;
+    if (summaries[index] != null) {
+      return summaries[index][(worldZ & 15) << 4 | (worldX & 15)];
+    }
+
+    return chunks[index] != null ? sampler.sample(chunks[index], worldX, worldZ) : MISSING;
+  }
+
+  public long[] getComputedSummary(int x, int z) {
+    int index = z * width + x;
+    return computed[index] ? summaries[index] : null;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.chunk;
+
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraft.world.level.levelgen.Heightmap;
+
+public final class LiveChunkColumns extends AbstractChunkColumns {
+
+  private final LevelChunk chunk;
+  private final LevelChunkSection[] sections;
+
+  public LiveChunkColumns(LevelChunk chunk) {
+    super(SectionPos.blockToSectionCoord(chunk.getLevel().getMinY()), chunk.getSections().length);
+    this.chunk = chunk;
+    this.sections = chunk.getSections();
+  }
+
+  @Override
+  protected PalettedContainer<BlockState> section(int index) {
+    LevelChunkSection section = sections[index];
+    return section == null || section.hasOnlyAir() ? null : section.getStates();
+  }
+
+  @Override
+  public int getSurfaceHeight(int x, int z) {
+    return chunk.getHeight(Heightmap.Types.WORLD_SURFACE, x, z);
+  }
+
+  @Override
+  public int getOceanFloorHeight(int x, int z) {
+    return chunk.getHeight(Heightmap.Types.OCEAN_FLOOR, x, z);
+  }
+}
@@ -105,7 +105,7 @@ public class MinimapPlayerDatabase {
           minimap.secondaryLayers().put(marker.getName(), iconLayer);
 
           if (iconLayer.getWorld() == null || player.getWorld().equals(iconLayer.getWorld())) {
-            provider.packetSender().spawnLayer(player, iconBaseLayer);
+            minimap.spawnSecondaryLayer(provider, iconLayer);
           }
         }
       }
@@ -5,6 +5,9 @@ keepEdges = 0.0;
 sx = 0.0;
 sy = 0.0;
 squareMinimap = 0.0;
+toroidal = 0.0;
+markerCount = 0.0;
+markerYaw = 0.0;
 vec2 uv = UV0;
 vec2 uv2 = vec2(0.0);
 
@@ -45,7 +48,14 @@ if (texture(Sampler0, uv).xyz == vec3(112. / 255., 108. / 255., 138. / 255.)) {
     }
 
     bool isMarker = sign(length(texture(Sampler0, vec2(0., texel)).xyz)) > 0;
-    if (isMarker) {
+    bool isMarkerTable = isMarker && sign(length(texture(Sampler0, vec2(texel * 17., texel)).xyz)) > 0;
+    if (isMarkerTable) {
+        gl_Position.z -= decodeFixedPoint(1, 1);
+        // Every listed icon is drawn upright at its position by the fragment shader
+        markerCount = float(decodeUnsigned(18, 1));
+        markerYaw = mod(-yaw + 180, 360) - 180;
+        minimap = 3.0;
+    } else if (isMarker) {
         float depth = decodeFixedPoint(1, 1);
         gl_Position.z -= depth;
 
@@ -56,6 +66,13 @@ if (texture(Sampler0, uv).xyz == vec3(112. / 255., 108. / 255., 138. / 255.)) {
         uv = uv * mat2_rotate_z(mod(-yaw + 180, 360) - 180);
         uv += rPoint;
 
+        if (sign(length(texture(Sampler0, vec2(texel * 10., texel * 2)).xyz)) > 0) {
+            // Position-independent pixels are drawn centered, move them to the tracked position
+            float mapX = float(decodeUnsigned(11, 2));
+            float mapZ = float(decodeUnsigned(19, 2));
+            uv += vec2(texel) * vec2(64. - mapZ, 64. - mapX);
+        }
+
         if (sign(length(texture(Sampler0, vec2(0., texel * 2)).xyz)) == 0) {
             vcolor = vec4(0.0);
         }
@@ -63,6 +80,12 @@ if (texture(Sampler0, uv).xyz == vec3(112. / 255., 108. / 255., 138. / 255.)) {
         bool keep = sign(length(texture(Sampler0, vec2(texel * 9., texel * 2)).xyz)) > 0;
         keepEdges = keep ? 1.0 : 0.0;
         minimap = 2.0;
+    } else if (sign(length(texture(Sampler0, vec2(texel * 19., 0.)).xyz)) > 0) {
+        // World-aligned texture, the player is at column/row 127 - position mod 128
+        float tx = float(decodeUnsigned(20, 0));
+        float tz = float(decodeUnsigned(28, 0));
+        uv += vec2(texel) * vec2(64. - tx, 64. - tz);
+        toroidal = 1.0;
     }
 } else {
     int fullscreenMagic = decodeUnsigned(0, 0);
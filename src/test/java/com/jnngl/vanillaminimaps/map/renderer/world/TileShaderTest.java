@@ -0,0 +1,128 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world;
+
+import net.minecraft.world.level.material.MapColor;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TileShaderTest {
+
+  private static final int TILES = 200;
+
+  private static boolean vectorAvailable() {
+    return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+  }
+
+  // Random color ids with plenty of water and missing pixels, heights from a small range so that
+  // neighbouring pixels are often level
+  private static Tile randomTile(Random random) {
+    Tile tile = new Tile(new byte[128 * 128], new byte[128 * 128], new short[128 * 129]);
+    for (int i = 0; i < 128 * 128; i++) {
+      int kind = random.nextInt(8);
+      if (kind == 0) {
+        tile.colorIds[i] = TileShader.NO_DATA;
+      } else if (kind < 4) {
+        tile.colorIds[i] = (byte) MapColor.WATER.id;
+        tile.fluidDepths[i] = (byte) random.nextInt(TileShader.MAX_FLUID_DEPTH + 1);
+      } else {
+        tile.colorIds[i] = (byte) (1 + random.nextInt(61));
+      }
+    }
+
+    for (int i = 0; i < tile.heights.length; i++) {
+      tile.heights[i] = (short) (random.nextInt(5) - 64 + random.nextInt(2) * 320);
+    }
+    return tile;
+  }
+
+  private static Tile[] randomTiles() {
+    Random random = new Random(0x5EED);
+    Tile[] tiles = new Tile[TILES];
+    for (int i = 0; i < TILES; i++) {
+      tiles[i] = randomTile(random);
+    }
+    return tiles;
+  }
+
+  @Test
+  void vectorShaderMatchesScalarShader() {
+    assumeTrue(vectorAvailable(), "jdk.incubator.vector is not resolvable");
+
+    TileShader scalar = new ScalarTileShader();
+    TileShader vector = new VectorTileShader();
+    byte[] expected = new byte[128 * 128];
+    byte[] actual = new byte[128 * 128];
+    Tile[] tiles = randomTiles();
+    for (int i = 0; i < tiles.length; i++) {
+      Tile tile = tiles[i];
+      scalar.shade(tile.colorIds, tile.fluidDepths, tile.heights, expected);
+      vector.shade(tile.colorIds, tile.fluidDepths, tile.heights, actual);
+      assertArrayEquals(expected, actual, "tile " + i + " shades differently");
+    }
+  }
+
+  // Run with ./gradlew benchmark
+  @Test
+  @Tag("benchmark")
+  void shadingThroughput() {
+    assumeTrue(vectorAvailable(), "jdk.incubator.vector is not resolvable");
+
+    Tile[] tiles = randomTiles();
+    double scalar = measure(new ScalarTileShader(), tiles);
+    double vector = measure(new VectorTileShader(), tiles);
+    System.out.printf("scalar: %.1f us/tile, vector: %.1f us/tile, %.2fx%n",
+        scalar / 1000.0, vector / 1000.0, scalar / vector);
+  }
+
+  // Nanoseconds per tile after warming up
+  private static double measure(TileShader shader, Tile[] tiles) {
+    byte[] data = new byte[128 * 128];
+    long checksum = 0;
+    for (int round = 0; round < 50; round++) {
+      for (Tile tile : tiles) {
+        shader.shade(tile.colorIds, tile.fluidDepths, tile.heights, data);
+        checksum += data[round];
+      }
+    }
+
+    int rounds = 100;
+    long start = System.nanoTime();
+    for (int round = 0; round < rounds; round++) {
+      for (Tile tile : tiles) {
+        shader.shade(tile.colorIds, tile.fluidDepths, tile.heights, data);
+        checksum += data[round];
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    // Keeps the shading from being optimized away
+    if (checksum == Long.MIN_VALUE) {
+      System.out.println(checksum);
+    }
+    return (double) elapsed / (rounds * tiles.length);
+  }
+
+  private record Tile(byte[] colorIds, byte[] fluidDepths, short[] heights) {
+  }
+}
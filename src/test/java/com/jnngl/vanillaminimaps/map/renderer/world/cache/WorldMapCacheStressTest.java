@@ -0,0 +1,160 @@
+/*
+ *  Copyright (C) 2024  JNNGL
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jnngl.vanillaminimaps.map.renderer.world.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WorldMapCacheStressTest {
+
+  private static final int KEYS = 4;
+  private static final int WRITERS = 4;
+  private static final int READERS = 4;
+  private static final int EVICTORS = 2;
+  private static final int ITERATIONS = 20_000;
+
+  // Keys that share one lock stripe, so every thread contends on the same lock
+  private static long[] sameStripeKeys() {
+    long[] keys = new long[KEYS];
+    int stripe = WorldMapCache.stripeIndex(1);
+    int found = 0;
+    for (long key = 1; found < KEYS; key++) {
+      if (WorldMapCache.stripeIndex(key) == stripe) {
+        keys[found++] = key;
+      }
+    }
+    return keys;
+  }
+
+  // Every pixel and height of a version is set to the same value, so a partially written version is detectable
+  private static void assertComplete(MapTile tile) {
+    TileView view = tile.view();
+    byte value = view.get(0);
+    for (int i = 1; i < TileView.SIZE; i++) {
+      assertEquals(value, view.get(i), "tile colors of one version differ");
+    }
+
+    HeightPlane heights = tile.heights();
+    if (heights != null) {
+      for (short height : heights.values()) {
+        assertEquals(value, height, "tile heights don't belong to its colors");
+      }
+    }
+  }
+
+  @Test
+  @Timeout(value = 2, unit = TimeUnit.MINUTES)
+  void readersOnlySeeCompleteVersionsWithIncreasingStamps() throws Throwable {
+    WorldMapCache<CacheableWorldMinimapRenderer> cache = new WorldMapCache<>(null);
+    long[] keys = sameStripeKeys();
+    for (long key : keys) {
+      assertEquals(WorldMapCache.stripeIndex(keys[0]), WorldMapCache.stripeIndex(key));
+    }
+
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    CyclicBarrier start = new CyclicBarrier(WRITERS + READERS + EVICTORS);
+    List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < WRITERS; i++) {
+      threads.add(new Thread(() -> run(start, failure, () -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+          long key = keys[random.nextInt(KEYS)];
+          MapTile expected = cache.lookup(key);
+          byte value = (byte) random.nextInt(1, 128);
+          byte[] data = new byte[TileView.SIZE];
+          Arrays.fill(data, value);
+          HeightPlane heights = null;
+          if (random.nextBoolean()) {
+            heights = new HeightPlane();
+            Arrays.fill(heights.values(), value);
+          }
+          cache.replace(key, expected, data, heights);
+        }
+      })));
+    }
+
+    for (int i = 0; i < READERS; i++) {
+      threads.add(new Thread(() -> run(start, failure, () -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] lastStamps = new long[KEYS];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+          int index = random.nextInt(KEYS);
+          MapTile tile = cache.lookup(keys[index]);
+          if (tile == null) {
+            continue;
+          }
+
+          assertComplete(tile);
+          assertNotEquals(0, tile.view().get(0), "read a tile that was never published");
+          assertTrue(tile.stamp() >= lastStamps[index],
+              "stamp went back from " + lastStamps[index] + " to " + tile.stamp());
+          lastStamps[index] = tile.stamp();
+        }
+      })));
+    }
+
+    for (int i = 0; i < EVICTORS; i++) {
+      threads.add(new Thread(() -> run(start, failure, () -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int iteration = 0; iteration < ITERATIONS / 4; iteration++) {
+          cache.evict(keys[random.nextInt(KEYS)], false);
+          Thread.onSpinWait();
+        }
+      })));
+    }
+
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+
+    // Whatever survived is still a complete version
+    for (long key : keys) {
+      MapTile tile = cache.lookup(key);
+      if (tile != null) {
+        assertComplete(tile);
+      }
+    }
+  }
+
+  private static void run(CyclicBarrier start, AtomicReference<Throwable> failure, Runnable body) {
+    try {
+      start.await();
+      body.run();
+    } catch (Throwable t) {
+      failure.compareAndSet(null, t);
+    }
+  }
+}